@@ -96,7 +96,7 @@ public class Analyze {
                     // first check against the clones
                     ArrayList<Statement> cloneStatementList = thisMatch.statements;
                     for (Statement cloneStatement : cloneStatementList) {
-                        HashSet<String> nameList1 = cloneStatement.nameList;
+                        HashSet<String> nameList1 = cloneStatement.getNameList();
                         if (nameList1.contains(thisArtifact)) {
                             existClone = true;
                             break;
@@ -109,7 +109,7 @@ public class Analyze {
 
                         boolean existThisMaster = false;
                         for (Statement masterStatement : masterStatementList) {
-                            HashSet<String> nameList2 = masterStatement.nameList;
+                            HashSet<String> nameList2 = masterStatement.getNameList();
                             if (nameList2.contains(thisArtifact)) {
                                 existThisMaster = true;
                                 break;
@@ -164,7 +164,7 @@ public class Analyze {
             endRange = statementList.size() - 1;
             for (int i = startRange; i <= endRange; i++) {
                 Statement thisStatement = statementList.get(i);
-                HashSet<String> nameList= thisStatement.nameList;
+                HashSet<String> nameList= thisStatement.getNameList();
                 for (String str : nameList) {
                     Set<String> camelTerms = Utilities.splitCamelCaseSet(str);
                     for (String splittedTerm : camelTerms) {
@@ -181,7 +181,7 @@ public class Analyze {
             endRange = thisMatch.endIndex;
             for (int i = startRange; i <= endRange; i++) {
                 Statement thisStatement = statementList.get(i);
-                HashSet<String> nameList= thisStatement.nameList;
+                HashSet<String> nameList= thisStatement.getNameList();
                 for (String str : nameList) {
                     Set<String> camelTerms = Utilities.splitCamelCaseSet(str);
                     for (String splittedTerm : camelTerms) {
@@ -207,7 +207,7 @@ public class Analyze {
             endRange = thisMatch.endIndex;
             for (int i = startRange; i <= endRange; i++) {
                 Statement thisStatement = statementList.get(i);
-                HashSet<String> nameList= thisStatement.nameList;
+                HashSet<String> nameList= thisStatement.getNameList();
                 for (String str : nameList) {
                     Set<String> camelTerms = Utilities.splitCamelCaseSet(str);
                     for (String splittedTerm : camelTerms) {
@@ -225,7 +225,7 @@ public class Analyze {
             endRange = statementList.size() - 1;
             for (int i = startRange; i <= endRange; i++) {
                 Statement thisStatement = statementList.get(i);
-                HashSet<String> nameList= thisStatement.nameList;
+                HashSet<String> nameList= thisStatement.getNameList();
                 for (String str : nameList) {
                     Set<String> camelTerms = Utilities.splitCamelCaseSet(str);
                     for (String splittedTerm : camelTerms) {
@@ -361,7 +361,9 @@ public class Analyze {
 
     public static boolean hasHashError (List<Statement> statementList1, List<Statement> statementList2) {
         for (int i = 0; i < statementList1.size(); i++) {
-            if (statementList1.get(i).hashNumber != statementList2.get(i).hashNumber) {
+            Statement s1 = statementList1.get(i);
+            Statement s2 = statementList2.get(i);
+            if (s1.hashNumber != s2.hashNumber || s1.longHash != s2.longHash) {
                 return true;
             }
         }
@@ -0,0 +1,65 @@
+import java.io.Serializable;
+
+import java.util.ArrayList;
+
+/*
+ * Records clones in the order they were found so that they can be
+ * replayed into an Output later, e.g. after a parallel comparison.
+ * Replaying in the sequential order gives the same match groups as
+ * adding the clones directly.
+ */
+public class CloneBuffer implements CloneSink, Serializable {
+
+    ArrayList<CloneRecord> recordList = new ArrayList<CloneRecord>();
+
+    static class CloneRecord implements Serializable {
+        String file1, file2;
+        int lineStart1, lineEnd1, lineStart2, lineEnd2;
+        int length;
+        ArrayList<Statement> statementRaw1, statementRaw2;
+        int statementStart1, statementEnd1, statementStart2, statementEnd2;
+        long[] statementHashes;
+    }
+
+    public void addClone(String file1, int lineStart1, int lineEnd1,
+            String file2, int lineStart2, int lineEnd2, int length,
+            ArrayList<Statement> statementRaw1, int statementStart1, int statementEnd1,
+            ArrayList<Statement> statementRaw2, int statementStart2, int statementEnd2,
+            long[] statementHashes) {
+
+        CloneRecord record = new CloneRecord();
+        record.file1 = file1;
+        record.lineStart1 = lineStart1;
+        record.lineEnd1 = lineEnd1;
+        record.file2 = file2;
+        record.lineStart2 = lineStart2;
+        record.lineEnd2 = lineEnd2;
+        record.length = length;
+        record.statementRaw1 = statementRaw1;
+        record.statementStart1 = statementStart1;
+        record.statementEnd1 = statementEnd1;
+        record.statementRaw2 = statementRaw2;
+        record.statementStart2 = statementStart2;
+        record.statementEnd2 = statementEnd2;
+        record.statementHashes = statementHashes;
+        recordList.add(record);
+    }
+
+    // append the records of a buffer that comes later in the order
+    public void append(CloneBuffer other) {
+        recordList.addAll(other.recordList);
+    }
+
+    public int size() {
+        return recordList.size();
+    }
+
+    public void replay(CloneSink sink) {
+        for (CloneRecord r : recordList) {
+            sink.addClone(r.file1, r.lineStart1, r.lineEnd1,
+                    r.file2, r.lineStart2, r.lineEnd2, r.length,
+                    r.statementRaw1, r.statementStart1, r.statementEnd1,
+                    r.statementRaw2, r.statementStart2, r.statementEnd2, r.statementHashes);
+        }
+    }
+}
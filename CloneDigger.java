@@ -3,6 +3,7 @@ import java.util.Calendar;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.HashSet;
 import java.io.File;
 
 import java.io.IOException;
@@ -23,16 +24,76 @@ public class CloneDigger {
         }
     }
 
+    // map the corpus store, rebuilding it from the cache if it is missing or stale
+    private static CorpusStore loadCorpusStore(CorpusStore.Builder builder, Manifest manifest,
+            String databaseDir, int minNumLines) {
+        String storePath = databaseDir + CorpusStore.FILE_NAME;
+        if (builder != null) {
+            builder.save(storePath, manifest, minNumLines);
+        }
+        CorpusStore store = CorpusStore.open(storePath, manifest, databaseDir, minNumLines);
+        if (store == null) {
+            CorpusStore.build(storePath, manifest, databaseDir, minNumLines);
+            store = CorpusStore.open(storePath, manifest, databaseDir, minNumLines);
+        }
+        return store;
+    }
+
+    // files to tokenize again, null if there are none; removes the .db files of deleted sources
+    private static boolean[] prepareIncrementalBuild(Manifest manifest, Manifest previous) {
+        boolean[] rebuild = manifest.staleFiles(previous);
+        HashSet<String> deleted = manifest.deletedFiles(previous);
+        System.out.println("Removing the cache of " + deleted.size() + " deleted files");
+        Database.removeCache(deleted);
+        for (boolean b : rebuild) {
+            if (b) {
+                return rebuild;
+            }
+        }
+        return null;
+    }
+
+    // complete the file summaries from the cache if needed and save them
+    private static void updateManifest(Manifest manifest, String manifestPath,
+            String databaseDir, int minNumLines) {
+        if (!manifest.isComplete()) {
+            manifest.summarizeMissing(databaseDir, minNumLines);
+        }
+        manifest.save(manifestPath);
+    }
+
+    // save a freshly built LSH index, otherwise load it or rebuild it from the cache
+    private static LshIndex loadLshIndex(LshIndex builtIndex, String indexPath,
+            ConfigFile config, Manifest manifest, String databaseDir) {
+        if (builtIndex != null) {
+            builtIndex.save(indexPath, manifest);
+            return builtIndex;
+        }
+        LshIndex index = LshIndex.load(indexPath, manifest, config.minHashSize, config.lshBands);
+        if (index == null) {
+            // missing or built for another file list, other .db files or signature
+            index = LshIndex.build(manifest.getFileList(), databaseDir, config.minNumLines,
+                    config.minHashSize, config.lshBands);
+            index.save(indexPath, manifest);
+        }
+        return index;
+    }
+
     public static void main(String args[]) throws IOException {
 
         Options options = new Options();
         options.addOption("generateBaseline", true, "generate baseline config file to the provided path");
         options.addOption("loadConfig", true, "configuration xml file path");
+        options.addOption("worker", true, "run the shards of the given shard directory");
         CommandLineParser parser = new DefaultParser();
         String baseLineOutputPath = null;
         String loadConfig = null;
+        String workerDir = null;
         try {
             CommandLine cmd = parser.parse(options, args);
+            if (cmd.hasOption("worker")) {
+                workerDir = cmd.getOptionValue("worker");
+            }
             if (cmd.hasOption("loadConfig")) {
                 loadConfig = cmd.getOptionValue("loadConfig");
             }
@@ -43,6 +104,12 @@ public class CloneDigger {
             System.out.println(e);
         }
 
+        // worker process of a sharded mesh comparison
+        if (workerDir != null) {
+            ShardCoordinator.runWorker(workerDir);
+            System.exit(0);
+        }
+
         // generate a baseline config file
         if (baseLineOutputPath != null) {
             System.out.println("Writing baseline config file..");
@@ -60,6 +127,20 @@ public class CloneDigger {
         int matchMode = config.matchMode;
         int minNumLines = config.minNumLines;
         int meshBlockSize = config.meshBlockSize;
+        int numThreads = config.numThreads;
+        Text.fingerprintSize = config.fingerprintSize;
+        Database.numThreads = config.buildThreads;
+        Database.numScanThreads = config.scanThreads;
+        Database.parseBatchSize = config.parseBatchSize;
+        Text.useLexer = config.tokenizer.equals("lexer");
+        TextCodec.compress = config.compressCache;
+        ResultFile.compress = config.compressResults;
+        boolean useLsh = config.lshThreshold > 0 && config.matchAlgorithm == 1;
+        if (useLsh) {
+            Text.minHashSize = config.minHashSize;
+        }
+        // the suffix array matcher reads the .db files itself
+        boolean useStore = config.corpusStore && config.matchAlgorithm != 2;
         String databaseDir = config.database;
         String projectDir = config.project;
         boolean debug = config.debug;
@@ -87,16 +168,60 @@ public class CloneDigger {
         // Measure elapsed time
         long startTime = System.nanoTime();
 
-        // check if a cached list of files exist
-        String databaseFilePaths = databaseDir + "cachedList.tmp";
-        File f = new File(databaseFilePaths);
-        List<String> databaseFileList;
-        if(f.exists() && !f.isDirectory() && loadDatabaseFilePaths == true) {
+        // check if a manifest of the files exist
+        String manifestPath = databaseDir + "manifest.tmp";
+        Manifest manifest = null;
+
+        // an incremental mesh run needs the previous manifest and results
+        Manifest previousManifest = Manifest.load(manifestPath);
+        boolean incremental = config.incremental && matchMode == 1 && loadResults == false &&
+                matchAlgorithm != 2 && exportResults == true && new File(resultPath).exists();
+        if (incremental && previousManifest == null) {
+            System.out.println("No previous manifest, running a full comparison");
+            incremental = false;
+        }
+        if (incremental && !previousManifest.hasBuildSettings(minNumLines, Text.fingerprintSize, Text.useLexer)) {
+            // the kept .db files and results were built with other settings
+            System.out.println("Build settings changed, running a full comparison");
+            incremental = false;
+        }
+
+        // an incremental build only tokenizes the sources changed since the previous manifest
+        boolean incrementalBuild = config.incrementalBuild && buildDatabase && incremental == false &&
+                loadResults == false && previousManifest != null;
+
+        if (loadDatabaseFilePaths == true && incremental == false && incrementalBuild == false) {
             // exist, load it
-            databaseFileList = Database.loadFileList(databaseFilePaths);
-        } else {
-            // doesn't exist or forced to create new one, create it
-            databaseFileList = Database.generateFileList(databaseDir, databaseFilePaths);
+            manifest = previousManifest;
+        }
+        if (manifest == null) {
+            // doesn't exist or forced to create new one, create it, it is saved once the .db files are built
+            manifest = Manifest.generate(databaseDir, previousManifest);
+            if (previousManifest != null) {
+                manifest.setBuildSettings(previousManifest.minNumLines, previousManifest.fingerprintSize,
+                        previousManifest.useLexer);
+            }
+        }
+        List<String> databaseFileList = manifest.getFileList();
+
+        // .db files of the other tokenizer have other statement hashes, build them all again
+        if (buildDatabase == false && loadResults == false && manifest.minNumLines != -1 &&
+                manifest.useLexer != Text.useLexer) {
+            System.out.println("Database was built by the " + (manifest.useLexer ? "lexer" : "jdt") +
+                    " tokenizer, building it again");
+            buildDatabase = true;
+        }
+
+        boolean[] rebuildFiles = null;
+        if (buildDatabase) {
+            manifest.setBuildSettings(minNumLines, Text.fingerprintSize, Text.useLexer);
+        }
+        if (incrementalBuild) {
+            rebuildFiles = prepareIncrementalBuild(manifest, previousManifest);
+            if (rebuildFiles == null) {
+                System.out.println("Database is up to date");
+                buildDatabase = false;
+            }
         }
 
         // td-idf
@@ -112,17 +237,79 @@ public class CloneDigger {
         ArrayList<String> errorList = new ArrayList<String>();
 
         Output output = new Output(matchAlgorithm, enableRepetitive, enableOneMethod, matchMode);
+        output.installManifest(manifest);
         if (matchMode == 1) {
-            if (loadResults == false) {
+            if (incremental) {
+                // only compare the new and changed files
+                System.out.println("Mode: incremental mesh");
+                boolean[] changed = manifest.diff(previousManifest);
+                ArrayList<String> changedFileList = new ArrayList<String>();
+                for (int i = 0; i < databaseFileList.size(); i++) {
+                    if (changed[i]) {
+                        changedFileList.add(databaseFileList.get(i));
+                    }
+                }
+                HashSet<String> removedFiles = manifest.deletedFiles(previousManifest);
+                removedFiles.addAll(changedFileList);
+                System.out.println(changedFileList.size() + " new or changed files, " +
+                        (removedFiles.size() - changedFileList.size()) + " deleted files");
+
+                ArrayList<String> temp = Database.constructCache(
+                        minNumLines, debug, changedFileList, databaseDir);
+                errorList.addAll(temp);
+                manifest.markBuilt(changed);
+
+                // drop the matches of the changed and deleted files
+                output.loadResults(resultPath);
+                output.removeFiles(removedFiles);
+
+                // Capture time
+                cal = Calendar.getInstance();
+                System.out.println("Start comparison @ " +  sdf.format(cal.getTime()) );
+
+                Compare comp = new Compare(minNumLines, databaseDir);
+                comp.installTextFiles(databaseFileList);
+                comp.installManifest(manifest);
+                comp.compareIncremental(output, matchAlgorithm, gapSize, changed);
+                output.saveResults(resultPath);
+
+                // only saved with the results, the changed files are compared again otherwise
+                updateManifest(manifest, manifestPath, databaseDir, minNumLines);
+            } else if (loadResults == false) {
                 // full mesh comparison
                 System.out.println("Mode: full mesh");
                 ArrayList<Text> database_TextList = new ArrayList<Text>();
 
-                // build the database
+                // build the database, the LSH index is built alongside
+                String lshIndexPath = databaseDir + "lshIndex.tmp";
+                ArrayList<TextIndex> indexList = new ArrayList<TextIndex>();
+                if (rebuildFiles == null) {
+                    // kept summaries are taken over, the others are summarized after the build
+                    indexList.add(manifest);
+                }
+                LshIndex lshIndex = null;
+                if (useLsh && buildDatabase) {
+                    lshIndex = new LshIndex(databaseFileList, config.minHashSize, config.lshBands);
+                    indexList.add(lshIndex);
+                }
+                CorpusStore.Builder storeBuilder = null;
+                if (useStore && buildDatabase) {
+                    storeBuilder = new CorpusStore.Builder();
+                    indexList.add(storeBuilder);
+                }
                 if (buildDatabase) {
                     ArrayList<String> temp = Database.constructCache(
-                            minNumLines, debug, databaseFileList, databaseDir);
+                            minNumLines, debug, databaseFileList, databaseDir, indexList, rebuildFiles);
                     errorList.addAll(temp);
+                    manifest.markBuilt(rebuildFiles);
+                }
+                updateManifest(manifest, manifestPath, databaseDir, minNumLines);
+                if (useLsh) {
+                    lshIndex = loadLshIndex(lshIndex, lshIndexPath, config, manifest, databaseDir);
+                }
+                CorpusStore corpusStore = null;
+                if (useStore) {
+                    corpusStore = loadCorpusStore(storeBuilder, manifest, databaseDir, minNumLines);
                 }
 
                 // Capture time
@@ -132,12 +319,22 @@ public class CloneDigger {
                 // perform the comparison
                 Compare comp = new Compare(minNumLines, databaseDir);
                 comp.installTextFiles(databaseFileList);
-                comp.compareMeshed(output, matchAlgorithm, gapSize, meshBlockSize);
+                comp.installManifest(manifest);
+                comp.installCorpusStore(corpusStore);
+                comp.installWorkers(config.numWorkers, config.workerHeap);
+                comp.installTextCache(config.textCacheSize);
+                if (useLsh) {
+                    comp.installLshIndex(lshIndex, config.lshThreshold, config.lshRecall);
+                }
+                if (exportResults) {
+                    output.streamResults(resultPath);
+                }
+                comp.compareMeshed(output, matchAlgorithm, gapSize, meshBlockSize, numThreads);
                 if (exportResults) {
-                    output.saveResults(resultPath);
+                    output.finishResults(resultPath);
                 }
             } else {
-                output.loadResults(resultPath);
+                output.openResults(resultPath);
             }
 
             // enable the query engine
@@ -163,9 +360,47 @@ public class CloneDigger {
                 temp = Database.constructCache(minNumLines, debug, projectFilePaths, projectDir);
                 errorList.addAll(temp);
 
+                // statement hash index of the database, built alongside the cache
+                String hashIndexPath = databaseDir + "hashIndex.tmp";
+                String lshIndexPath = databaseDir + "lshIndex.tmp";
+                HashIndex hashIndex;
+                LshIndex lshIndex = null;
+                CorpusStore.Builder storeBuilder = null;
                 if (buildDatabase) {
-                    temp = Database.constructCache(minNumLines, debug, databaseFileList, databaseDir);
+                    ArrayList<TextIndex> indexList = new ArrayList<TextIndex>();
+                    hashIndex = new HashIndex(databaseFileList);
+                    indexList.add(hashIndex);
+                    if (rebuildFiles == null) {
+                        indexList.add(manifest);
+                    }
+                    if (useLsh) {
+                        lshIndex = new LshIndex(databaseFileList, config.minHashSize, config.lshBands);
+                        indexList.add(lshIndex);
+                    }
+                    if (useStore) {
+                        storeBuilder = new CorpusStore.Builder();
+                        indexList.add(storeBuilder);
+                    }
+                    temp = Database.constructCache(minNumLines, debug, databaseFileList, databaseDir,
+                            indexList, rebuildFiles);
                     errorList.addAll(temp);
+                    manifest.markBuilt(rebuildFiles);
+                    hashIndex.save(hashIndexPath, manifest);
+                } else {
+                    hashIndex = HashIndex.load(hashIndexPath, manifest);
+                    if (hashIndex == null) {
+                        // missing or built for another file list or other .db files
+                        hashIndex = HashIndex.build(databaseFileList, databaseDir, minNumLines);
+                        hashIndex.save(hashIndexPath, manifest);
+                    }
+                }
+                if (useLsh) {
+                    lshIndex = loadLshIndex(lshIndex, lshIndexPath, config, manifest, databaseDir);
+                }
+                updateManifest(manifest, manifestPath, databaseDir, minNumLines);
+                CorpusStore corpusStore = null;
+                if (useStore) {
+                    corpusStore = loadCorpusStore(storeBuilder, manifest, databaseDir, minNumLines);
                 }
 
                 // only load the projects into memory
@@ -180,12 +415,21 @@ public class CloneDigger {
                 // perform the comparison
                 Compare comp = new Compare(minNumLines, databaseDir);
                 comp.installTextFiles(project_TextList, databaseFileList);
+                comp.installIndex(hashIndex);
+                comp.installManifest(manifest);
+                comp.installCorpusStore(corpusStore);
+                if (useLsh) {
+                    comp.installLshIndex(lshIndex, config.lshThreshold, config.lshRecall);
+                }
+                if (exportResults) {
+                    output.streamResults(resultPath);
+                }
                 comp.compareBetween(output, matchAlgorithm, gapSize);
                 if (exportResults) {
-                    output.saveResults(resultPath);
+                    output.finishResults(resultPath);
                 }
             } else {
-                output.loadResults(resultPath);
+                output.openResults(resultPath);
             }
 
             output.printResults(removeEmpty, similarityRange, enableSimilarity, matchMode);
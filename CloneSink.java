@@ -0,0 +1,15 @@
+import java.util.ArrayList;
+
+/*
+ * Receives the clones found by Compare. statementHashes are the 64-bit
+ * hashes of the matched statements, without the gaps of a gapped clone,
+ * and decide the match group of the clone.
+ */
+public interface CloneSink {
+
+    public void addClone(String file1, int lineStart1, int lineEnd1,
+            String file2, int lineStart2, int lineEnd2, int length,
+            ArrayList<Statement> statementRaw1, int statementStart1, int statementEnd1,
+            ArrayList<Statement> statementRaw2, int statementStart2, int statementEnd2,
+            long[] statementHashes);
+}
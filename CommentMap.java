@@ -17,6 +17,9 @@ public class CommentMap implements Serializable {
     // 0 - javadoc, 1 - linecomment, 2 - blockcomment
     public int commentType;
 
+    // a line comment with nothing but spaces before it on its line
+    public boolean standalone = false;
+
     public CommentMap(String cmt, int sLine, int eLine, int cType) {
 
         comment = cmt;
@@ -4,19 +4,23 @@ import org.eclipse.jdt.core.dom.*;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.List;
 import java.nio.file.Paths;
 import java.nio.file.Files;
 import java.nio.charset.*;
 import java.io.IOException;
 
+import java.util.regex.Pattern;
 
 
+
+/*
+ * Finds the comments of a line range. The comments of a file are either
+ * collected by the Parser in the same pass as the statements, or read
+ * here with a parse of their own that does without binding resolution.
+ */
 public class CommentParser {
 
-    final CompilationUnit unit;
-    char[] content;
-    List<Comment> commentList;
+    ArrayList<CommentMap> commentList;
 
     /* Convert a file into a String */
     private static String fileToString(String path) throws IOException {
@@ -36,7 +40,7 @@ public class CommentParser {
         ASTParser parser = ASTParser.newParser(AST.JLS4);
 
         parser.setKind(ASTParser.K_COMPILATION_UNIT);
-        content = source.toCharArray();
+        char[] content = source.toCharArray();
         parser.setSource(content);
 
         Map<String, String> options = JavaCore.getOptions();
@@ -45,20 +49,58 @@ public class CommentParser {
                 JavaCore.VERSION_1_6);
         options.put(JavaCore.COMPILER_SOURCE, JavaCore.VERSION_1_6);
 
-        String sourceName = absPath.substring(0, absPath.indexOf("/"));
-        String[] sources = {sourceName};
-        String[] classPaths = {sourceName};
-
-        parser.setEnvironment(classPaths, sources,
-                new String[] { "UTF-8" }, true);
-        parser.setBindingsRecovery(true);
-        parser.setResolveBindings(true);
+        // the comments do not need bindings
+        parser.setResolveBindings(false);
         parser.setCompilerOptions(options);
         parser.setStatementsRecovery(true);
 
-        unit = (CompilationUnit) parser.createAST(null);
+        CompilationUnit unit = (CompilationUnit) parser.createAST(null);
+        commentList = collectComments(unit, content);
+    }
+
+    // comments collected by the Parser
+    public CommentParser (ArrayList<CommentMap> comments) {
+        commentList = comments;
+    }
+
+    // the text and lines of every comment of unit, in source order
+    public static ArrayList<CommentMap> collectComments(CompilationUnit unit, char[] content) {
+        ArrayList<CommentMap> comments = new ArrayList<CommentMap>();
+        for (Object obj : unit.getCommentList()) {
+            Comment comment = (Comment) obj;
+            int startLineNumber = unit.getLineNumber(comment.getStartPosition());
+            int endLineNumber = unit.getLineNumber(comment.getStartPosition() + comment.getLength());
+            comment.accept(new CommentVisitor(unit, content, comments, startLineNumber, endLineNumber));
+
+            if (comment.isLineComment()) {
+                CommentMap cMap = comments.get(comments.size() - 1);
+                cMap.standalone = isStandalone(content, comment.getStartPosition(), cMap.comment);
+            }
+        }
+        return comments;
+    }
+
+    private static final Pattern STANDALONE = Pattern.compile("^[\\s\t]*\\/\\/.+$");
 
-        commentList = (List<Comment>) unit.getCommentList();
+    // the line up to the end of the comment, matched as a line of the source file
+    static boolean isStandalone(char[] content, int position, String comment) {
+        int lineStart = position;
+        while (lineStart > 0 && content[lineStart - 1] != '\n' && content[lineStart - 1] != '\r') {
+            lineStart--;
+        }
+        String line = new String(content, lineStart, position - lineStart) + comment;
+        return STANDALONE.matcher(line).find();
+    }
+
+    // the comments that start between startLine and endLine
+    public ArrayList<CommentMap> getComments(int startLine, int endLine) {
+        ArrayList<CommentMap> comments = new ArrayList<CommentMap>();
+        for (CommentMap comment : commentList) {
+            if (comment.startLine >= startLine && comment.startLine <= endLine) {
+                comments.add(comment);
+            }
+        }
+        return comments;
     }
 
     // mode 0 - default where it grabs all comments
@@ -70,13 +112,13 @@ public class CommentParser {
         final ArrayList<CommentMap> commentMap = new ArrayList<CommentMap>();
         for (int i = 0; i < commentList.size(); i++) {
         
-            Comment comment = commentList.get(i);
-            int startLineNumber = unit.getLineNumber(comment.getStartPosition());
-            int endLineNumber = unit.getLineNumber(comment.getStartPosition() + comment.getLength());
+            CommentMap comment = commentList.get(i);
+            int startLineNumber = comment.startLine;
+            int endLineNumber = comment.endLine;
         
             // search for line line comment, block comment, javadoc comment within the range
             if (startLineNumber >= startLine && endLineNumber <= endLine) {
-                comment.accept(new CommentVisitor(unit, content, commentMap, startLineNumber, endLineNumber));
+                commentMap.add(copy(comment));
                 continue;
             }
 
@@ -91,12 +133,11 @@ public class CommentParser {
                 while (currentLine < startLine && i < commentList.size()) {
                     comment = commentList.get(i);
 
-                    startLineNumber = unit.getLineNumber(comment.getStartPosition());
-                    endLineNumber = unit.getLineNumber(comment.getStartPosition() + comment.getLength());
+                    startLineNumber = comment.startLine;
+                    endLineNumber = comment.endLine;
 
                     if (startLineNumber == endLineNumber && startLineNumber == currentLine) {
-                        comment.accept(new CommentVisitor(unit, content,
-                                    dummyMap, startLineNumber, endLineNumber));
+                        dummyMap.add(copy(comment));
                         currentLine++;
                         i++;
                     } else {
@@ -126,4 +167,11 @@ public class CommentParser {
         return commentMap;
     }               
 
+    // the callers change the comments they get
+    private static CommentMap copy(CommentMap comment) {
+        CommentMap cMap = new CommentMap(comment.comment, comment.startLine, comment.endLine, comment.commentType);
+        cMap.standalone = comment.standalone;
+        return cMap;
+    }
+
 }
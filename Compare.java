@@ -3,8 +3,13 @@ import java.util.ArrayList;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.Arrays;
 import java.io.IOException;
 
+import java.nio.IntBuffer;
+
 public class Compare {
 
     ArrayList<Text> project;
@@ -17,6 +22,21 @@ public class Compare {
 
     String databaseDir;
 
+    HashIndex hashIndex;
+
+    Manifest manifest;
+
+    CorpusStore corpusStore;
+
+    TextCache textCache;
+
+    int numWorkers = 1;
+    String workerHeap;
+
+    LshIndex lshIndex;
+    double lshThreshold;
+    boolean lshRecall;
+
     public Compare(int numLinesMatch, String databaseDirIn) {
         databaseDir = databaseDirIn;
         minNumLines = numLinesMatch;
@@ -29,10 +49,77 @@ public class Compare {
         project = projectList;
         databasePaths = db_PathList;
     }
-    public void compareMeshed (Output outputObject, int mode, int gapSize, int blockSize) {
+    public void installIndex(HashIndex index) {
+        hashIndex = index;
+    }
+    // the mesh comparison runs on worker processes if there is more than one
+    public void installWorkers(int numWorkersIn, String workerHeapIn) {
+        numWorkers = numWorkersIn;
+        workerHeap = workerHeapIn;
+    }
+    public void installCorpusStore(CorpusStore store) {
+        corpusStore = store;
+    }
+    // keep up to cacheSize MB of database texts between the blocks of compareMeshed
+    public void installTextCache(int cacheSize) {
+        if (cacheSize > 0) {
+            textCache = new TextCache(cacheSize);
+        } else {
+            textCache = null;
+        }
+    }
+    public void installManifest(Manifest manifestIn) {
+        manifest = manifestIn;
+    }
+    // false if the database file at index can not match the given text
+    boolean mayMatch(Text text, int index) {
+        return manifest == null || manifest.mayMatch(text, index, minNumLines);
+    }
+    // false if the database file at index can not match any of the texts
+    boolean mayMatchAny(List<Text> textList, int index) {
+        if (manifest == null) {
+            return true;
+        }
+        for (Text text : textList) {
+            if (manifest.mayMatch(text, index, minNumLines)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    // gapped matching only runs on the LSH candidate pairs
+    public void installLshIndex(LshIndex index, double threshold, boolean measureRecall) {
+        lshIndex = index;
+        lshThreshold = threshold;
+        lshRecall = measureRecall;
+    }
+    public void compareMeshed (Output outputObject, int mode, int gapSize, int blockSize, int numThreads) {
     
         result = outputObject;
 
+        if (mode == 2) {
+            // one pass over the whole corpus
+            SuffixArrayMatcher matcher = new SuffixArrayMatcher(minNumLines, databaseDir);
+            matcher.matchMeshed(databasePaths, outputObject);
+            return;
+        }
+
+        if (mode == 1 && lshIndex != null) {
+            compareMeshedLsh(mode, gapSize);
+            return;
+        }
+
+        if (numWorkers > 1) {
+            ShardCoordinator coordinator = new ShardCoordinator(this, numWorkers, workerHeap);
+            coordinator.compareMeshed(outputObject, mode, gapSize, blockSize);
+            return;
+        }
+
+        if (numThreads > 1) {
+            compareMeshedParallel(mode, gapSize, blockSize, numThreads);
+            return;
+        }
+
         System.out.println("\nComparing for " + databasePaths.size() + " files");
 
         // perform comparison within the blocks
@@ -45,20 +132,10 @@ public class Compare {
             }
 
             // load up memory first
-            ArrayList<Text> thisBlock = new ArrayList<Text>();
-            for (int j = i; j < nextMark; j++) {
-                thisBlock.add(Database.loadSingleFile(databasePaths.get(j), databaseDir, minNumLines, false));
-            }
+            ArrayList<Text> thisBlock = loadCachedBlock(i, nextMark, null);
 
             // perform local comparison
-            for (int j = 0; j < thisBlock.size() - 1; j++) {
-                System.out.print(j + "\r");
-                Text text1 = thisBlock.get(j);
-                for (int k = j + 1; k < thisBlock.size(); k++) {
-                    Text text2 = thisBlock.get(k);
-                    textCompare(text1, text2, mode, gapSize);
-                }
-            }
+            compareWithinBlock(thisBlock, mode, gapSize, result);
         }
         
         // perform comparison between the blocks
@@ -73,20 +150,13 @@ public class Compare {
             System.out.println(nextMark);
 
             // load this block into memory
-            ArrayList<Text> thisBlock = new ArrayList<Text>();
-            for (int j = i; j < nextMark; j++) {
-                thisBlock.add(Database.loadSingleFile(databasePaths.get(j), databaseDir, minNumLines, false));
-            }
+            ArrayList<Text> thisBlock = loadCachedBlock(i, nextMark, null);
 
             // between comparsion
-            for (int j = 0; j < thisBlock.size(); j++) {
-                Text text1 = thisBlock.get(j);
-                for (int k = nextMark; k < databasePaths.size(); k++) {
-                    Text text2 = Database.loadSingleFile(databasePaths.get(k), databaseDir, minNumLines, false);
-                    textCompare(text1, text2, mode, gapSize);
-                }
-            }
-
+            compareBlockAgainst(thisBlock, nextMark, blockSize, mode, gapSize, result);
+        }
+        if (textCache != null) {
+            textCache.printStats();
         }
 
         /*
@@ -103,343 +173,701 @@ public class Compare {
         */
         System.out.println("");
     }
-    public void compareBetween (Output outputObject, int mode, int gapSize) {
+    // a database text, read from the corpus store if there is one
+    Text loadText(int index) {
+        if (corpusStore != null) {
+            return corpusStore.getText(index);
+        }
+        return Database.loadSingleFile(databasePaths.get(index), databaseDir, minNumLines, false);
+    }
+
+    ArrayList<Text> loadCachedBlock(int from, int to, ArrayList<Text> filterBlock) {
+        return loadCachedBlock(from, to, filterBlock, true);
+    }
+
+    /*
+     * Block of texts from the cache, loading the missing ones. Files that
+     * the manifest rules out for every text of filterBlock are not loaded
+     * and stay null in the block. Unless evict is set, the loaded texts
+     * are only cached if there is room left for them.
+     */
+    ArrayList<Text> loadCachedBlock(int from, int to, ArrayList<Text> filterBlock, boolean evict) {
+        ArrayList<Text> block = new ArrayList<Text>();
+        for (int j = from; j < to; j++) {
+            Text txt = null;
+            if (textCache != null) {
+                txt = textCache.get(j);
+            }
+            if (txt == null && (filterBlock == null || mayMatchAny(filterBlock, j))) {
+                txt = loadText(j);
+                if (textCache != null && evict) {
+                    textCache.put(j, txt);
+                } else if (textCache != null) {
+                    textCache.putIfRoom(j, txt);
+                }
+            }
+            block.add(txt);
+        }
+        return block;
+    }
+
+    // every pair (j, k) with j < k inside the block
+    void compareWithinBlock(ArrayList<Text> block, int mode, int gapSize, CloneSink sink) {
+        for (int j = 0; j < block.size() - 1; j++) {
+            System.out.print(j + "\r");
+            Text text1 = block.get(j);
+            for (int k = j + 1; k < block.size(); k++) {
+                Text text2 = block.get(k);
+                textCompare(text1, text2, mode, gapSize, sink);
+            }
+        }
+    }
+
+    /*
+     * Every text of the block against the database files from the given
+     * one on. The later files are loaded a block at a time and each block
+     * is compared with all the rows, so the clones come in the order of
+     * the block pairs and then of the rows. Only the first later block,
+     * the next block of compareMeshed, pushes other texts out of the cache;
+     * the scan of the rest would otherwise evict it before it is used.
+     */
+    void compareBlockAgainst(ArrayList<Text> block, int from, int blockSize,
+            int mode, int gapSize, CloneSink sink) {
+        for (int l = from; l < databasePaths.size(); l = l + blockSize) {
+            int nextMark = Math.min(l + blockSize, databasePaths.size());
+            ArrayList<Text> laterBlock = loadCachedBlock(l, nextMark, block, l == from);
+
+            for (int j = 0; j < block.size(); j++) {
+                Text text1 = block.get(j);
+                for (int k = 0; k < laterBlock.size(); k++) {
+                    Text text2 = laterBlock.get(k);
+                    if (text2 == null || !mayMatch(text1, l + k)) {
+                        continue;
+                    }
+                    textCompare(text1, text2, mode, gapSize, sink);
+                }
+            }
+        }
+    }
+
+    /*
+     * Mesh comparison of only the pairs with a changed file, in the order
+     * of the full comparison. The changed files are kept in memory, the
+     * unchanged ones are loaded when paired with a changed file.
+     */
+    public void compareIncremental (Output outputObject, int mode, int gapSize, boolean[] changed) {
 
         result = outputObject;
 
-        System.out.println("\nComparing against " + databasePaths.size() + " database files");
+        HashMap<Integer, Text> changedTexts = new HashMap<Integer, Text>();
+        for (int i = 0; i < databasePaths.size(); i++) {
+            if (changed[i]) {
+                changedTexts.put(i, loadText(i));
+            }
+        }
+
+        System.out.println("\nComparing " + changedTexts.size() + " new or changed files against " +
+                databasePaths.size() + " files");
 
         for (int i = 0; i < databasePaths.size(); i++) {
-            // outer loop is the database
-            Text text1 = Database.loadSingleFile(databasePaths.get(i), databaseDir, minNumLines, false);
+            Text text1 = changedTexts.get(i);
+            for (int j = i + 1; j < databasePaths.size(); j++) {
+                if (!changed[i] && !changed[j]) {
+                    continue;
+                }
 
-            for (int j = 0; j < project.size(); j++) {
-                // inner loop is the project
-                Text text2 = project.get(j);
-                textCompare(text2, text1, mode, gapSize);
+                Text text2 = changedTexts.get(j);
+                if (text1 != null && text2 == null) {
+                    if (!mayMatch(text1, j)) {
+                        continue;
+                    }
+                    text2 = loadText(j);
+                } else if (text1 == null && !mayMatch(text2, i)) {
+                    continue;
+                }
 
+                if (text1 == null) {
+                    text1 = loadText(i);
+                }
+                textCompare(text1, text2, mode, gapSize);
             }
-
             System.out.print((i+1) + "\r");
         }
         System.out.println("");
     }
 
-    private ArrayList<Coordinate> sortCoordinate(ArrayList<Coordinate> coorList) {
-        ArrayList<Coordinate> newList = new ArrayList<Coordinate>();
+    // same block structure as compareMeshed, the text pairs run on a thread pool
+    private void compareMeshedParallel (int mode, int gapSize, int blockSize, int numThreads) {
+
+        System.out.println("\nComparing for " + databasePaths.size() + " files on " +
+                numThreads + " threads");
+
+        MeshScheduler scheduler = new MeshScheduler(this, numThreads, mode, gapSize);
+
+        // perform comparison within the blocks
+        System.out.println("Processing within blocks");
+        for (int i = 0; i < databasePaths.size(); i = i + blockSize) {
+
+            int nextMark = i + blockSize;
+            if (nextMark > databasePaths.size()) {
+                nextMark = databasePaths.size();
+            }
+
+            ArrayList<Text> thisBlock = loadCachedBlock(i, nextMark, null);
+
+            CloneBuffer buffer = scheduler.compareWithin(thisBlock);
+            buffer.replay(result);
+        }
+
+        // perform comparison between the blocks
+        System.out.println("Processing between blocks");
+        for (int i = 0; i < databasePaths.size(); i = i + blockSize) {
+            int nextMark = i + blockSize;
+            if (nextMark > databasePaths.size()) {
+                // we are on the last block, terminate
+                break;
+            }
 
-        for (Coordinate c : coorList) {
+            System.out.println(nextMark);
+
+            ArrayList<Text> thisBlock = loadCachedBlock(i, nextMark, null);
 
+            // the later blocks one at a time, in the order of compareBlockAgainst
+            for (int l = nextMark; l < databasePaths.size(); l = l + blockSize) {
+                int laterMark = Math.min(l + blockSize, databasePaths.size());
+                ArrayList<Text> laterBlock = loadCachedBlock(l, laterMark, thisBlock, l == nextMark);
+                CloneBuffer[] buffers = scheduler.compareBlocks(thisBlock, laterBlock, l);
+                for (int j = 0; j < thisBlock.size(); j++) {
+                    buffers[j].replay(result);
+                }
+            }
+        }
+        if (textCache != null) {
+            textCache.printStats();
         }
 
-        return newList;
+        scheduler.shutdown();
+        System.out.println("");
     }
 
-    private int distance(int a, int b) {
-        return (b-a);
+    // only compares the method pairs sharing an LSH bucket
+    private void compareMeshedLsh (int mode, int gapSize) {
+
+        ArrayList<int[]> candidateList = lshIndex.meshCandidates(lshThreshold);
+        System.out.println("\nComparing " + candidateList.size() + " LSH candidate method pairs of " +
+                databasePaths.size() + " files");
+
+        Text text1 = null;
+        Text text2 = null;
+        int file1 = -1;
+        int file2 = -1;
+        for (int[] candidate : candidateList) {
+            if (candidate[0] != file1) {
+                file1 = candidate[0];
+                text1 = loadText(file1);
+                file2 = -1;
+                System.out.print((file1+1) + "\r");
+            }
+            if (candidate[2] != file2) {
+                file2 = candidate[2];
+                text2 = loadText(file2);
+            }
+            methodCompare(text1, candidate[1], text2, candidate[3], mode, gapSize, result);
+        }
+        System.out.println("");
+
+        if (lshRecall) {
+            HashSet<Long> candidateSet = new HashSet<Long>();
+            for (int[] candidate : candidateList) {
+                candidateSet.add(((long) lshIndex.getMethodId(candidate[0], candidate[1]) << 32) |
+                        lshIndex.getMethodId(candidate[2], candidate[3]));
+            }
+            measureMeshedRecall(mode, gapSize, candidateSet);
+        }
     }
 
-    private void extendChain (
-            ArrayList<Chain> builtChain, HashMap<Chain, ArrayList<Chain>> gapMap,
-            ArrayList<ArrayList<Chain>> masterChain) {
-        
-        Chain thisChain = builtChain.get(builtChain.size()-1);
-        ArrayList<Chain> connectedList = gapMap.get(thisChain);
-        if (connectedList != null) {
-            for (int i = 0 ; i < connectedList.size(); i++) {
-                ArrayList<Chain> newList = new ArrayList<Chain>(builtChain);
-                newList.add(connectedList.get(i));
-                extendChain(newList, gapMap, masterChain);
+    // runs the exhaustive comparison again, counting the clones the LSH pairs keep
+    private void measureMeshedRecall (int mode, int gapSize, HashSet<Long> candidateSet) {
+
+        System.out.println("Measuring LSH recall against the exhaustive comparison");
+        CloneCounter kept = new CloneCounter();
+        CloneCounter missed = new CloneCounter();
+        long numPairs = 0;
+        for (int i = 0; i < databasePaths.size(); i++) {
+            Text text1 = loadText(i);
+            for (int j = i + 1; j < databasePaths.size(); j++) {
+                Text text2 = loadText(j);
+                for (int k = 0; k < text1.getNumMethods(); k++) {
+                    for (int l = 0; l < text2.getNumMethods(); l++) {
+                        long key = ((long) lshIndex.getMethodId(i, k) << 32) | lshIndex.getMethodId(j, l);
+                        if (candidateSet.contains(key)) {
+                            methodCompare(text1, k, text2, l, mode, gapSize, kept);
+                        } else {
+                            methodCompare(text1, k, text2, l, mode, gapSize, missed);
+                        }
+                        numPairs++;
+                    }
+                }
             }
-        } else {
-            masterChain.add(builtChain);
+            System.out.print((i+1) + "\r");
         }
+        System.out.println("");
+        kept.report(candidateSet.size(), numPairs, missed);
     }
 
-    private ArrayList<ArrayList<Chain>> buildChains(
-            ArrayList<Chain> chainList, HashMap<Chain, ArrayList<Chain>> gapMap) {
-        
-        ArrayList<ArrayList<Chain>> masterChain = new ArrayList<ArrayList<Chain>>();
+    public void compareBetween (Output outputObject, int mode, int gapSize) {
 
-        for (int i = 0; i < chainList.size(); i++) {
-            Chain thisChain = chainList.get(i);
+        result = outputObject;
 
-            ArrayList<Chain> builtChain = new ArrayList<Chain>();
-            builtChain.add(thisChain);
+        if (mode == 2) {
+            SuffixArrayMatcher matcher = new SuffixArrayMatcher(minNumLines, databaseDir);
+            matcher.matchBetween(project, databasePaths, outputObject);
+            return;
+        }
 
-            extendChain(builtChain, gapMap, masterChain);
+        if (mode == 1 && lshIndex != null) {
+            compareBetweenLsh(mode, gapSize);
+            return;
         }
 
-        return masterChain;
-    }
+        if (hashIndex != null) {
+            System.out.println("\nLooking up candidates for " + project.size() + " project files");
+            HashMap<Integer, HashSet<Long>> candidateMap = new HashMap<Integer, HashSet<Long>>();
+            for (int j = 0; j < project.size(); j++) {
+                Text text2 = project.get(j);
+                for (int k = 0; k < text2.getNumMethods(); k++) {
+                    hashIndex.addCandidates(text2.getRawStatements(k), minNumLines, j, k, candidateMap);
+                }
+            }
+            compareBetweenIndexed(mode, gapSize, candidateMap);
+            return;
+        }
 
-    public void textCompare(Text text1, Text text2, int mode, int gapSize) {
-        for (int k = 0; k < text1.getNumMethods(); k++) {
-            for (int l = 0; l < text2.getNumMethods(); l++) {
-                if (mode == 0) {
-                    // exact matching
-                    ArrayList<Statement> statementRaw1 = text1.getRawStatements(k);
-                    ArrayList<Statement> statementRaw2 = text2.getRawStatements(l);
-                    int sizeX = statementRaw1.size();
-                    int sizeY = statementRaw2.size();
-                    
-                    // x - statement1
-                    // y - statement2
-                    // Build matrix
-                    HashMap<Coordinate, Integer> coorMap = new HashMap<Coordinate, Integer>();
-                    ArrayList<Coordinate> coorList = new ArrayList<Coordinate>();
-                    //matrix = new boolean[sizeX][sizeY];
-                    for (int x = 0; x < sizeX; x++) {
-                        for (int y = 0; y < sizeY; y++) {
-                            if (statementRaw1.get(x).hashNumber == statementRaw2.get(y).hashNumber) {
-                                Coordinate coor = new Coordinate(x,y);
-                                coorMap.put(coor, statementRaw1.get(x).hashNumber);
-                                coorList.add(coor);
-                            }
-                        }
-                    }
+        System.out.println("\nComparing against " + databasePaths.size() + " database files");
 
-                    // find the NG-clone
-                    while (coorList.size() != 0) {
-                        Coordinate thisCoor = coorList.get(0);
+        for (int i = 0; i < databasePaths.size(); i++) {
+            if (!mayMatchAny(project, i)) {
+                System.out.print((i+1) + "\r");
+                continue;
+            }
 
-                        int longestLength = 1; 
+            // outer loop is the database
+            Text text1 = loadText(i);
 
-                        int x = thisCoor.x + 1;
-                        int y = thisCoor.y + 1;
-                        Coordinate coorNext = new Coordinate(x,y);
-                        while (coorMap.get(coorNext) != null) {
+            for (int j = 0; j < project.size(); j++) {
+                // inner loop is the project
+                Text text2 = project.get(j);
+                textCompare(text2, text1, mode, gapSize);
 
-                            //remove from arrayList
-                            coorList.remove(coorNext);
+            }
 
-                            longestLength++;
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+    }
 
-                            x++;
-                            y++;
-                            coorNext = new Coordinate(x,y);
+    private void compareBetweenLsh (int mode, int gapSize) {
 
+        System.out.println("\nLooking up LSH candidates for " + project.size() + " project files");
+        HashMap<Integer, HashSet<Long>> candidateMap = new HashMap<Integer, HashSet<Long>>();
+        for (int j = 0; j < project.size(); j++) {
+            Text text2 = project.get(j);
+            for (int k = 0; k < text2.getNumMethods(); k++) {
+                int[] signature = text2.getMethod(k).getMinHashes(lshIndex.signatureSize);
+                lshIndex.addCandidates(signature, lshThreshold, j, k, candidateMap);
+            }
+        }
+        compareBetweenIndexed(mode, gapSize, candidateMap);
+
+        if (lshRecall) {
+            measureBetweenRecall(mode, gapSize, candidateMap);
+        }
+    }
+
+    // runs the exhaustive comparison again, counting the clones the LSH pairs keep
+    private void measureBetweenRecall (int mode, int gapSize,
+            HashMap<Integer, HashSet<Long>> candidateMap) {
+
+        System.out.println("Measuring LSH recall against the exhaustive comparison");
+        CloneCounter kept = new CloneCounter();
+        CloneCounter missed = new CloneCounter();
+        long numCandidates = 0;
+        long numPairs = 0;
+        for (int i = 0; i < databasePaths.size(); i++) {
+            Text text1 = loadText(i);
+            HashSet<Long> candidates = candidateMap.get(i);
+            if (candidates == null) {
+                candidates = new HashSet<Long>();
+            }
+            numCandidates = numCandidates + candidates.size();
+
+            for (int j = 0; j < project.size(); j++) {
+                Text text2 = project.get(j);
+                for (int k = 0; k < text2.getNumMethods(); k++) {
+                    for (int l = 0; l < text1.getNumMethods(); l++) {
+                        if (candidates.contains(HashIndex.packCandidate(j, k, l))) {
+                            methodCompare(text2, k, text1, l, mode, gapSize, kept);
+                        } else {
+                            methodCompare(text2, k, text1, l, mode, gapSize, missed);
                         }
-                        coorList.remove(thisCoor);
-
-                        if (longestLength >= minNumLines) {
-                            result.addClone(databaseDir + text1.getDatabasePath(), 
-                                    statementRaw1.get(thisCoor.x).startLine,
-                                    statementRaw1.get(thisCoor.x + longestLength - 1).endLine,
-                                    databaseDir + text2.getDatabasePath(), 
-                                    statementRaw2.get(thisCoor.y).startLine,
-                                    statementRaw2.get(thisCoor.y + longestLength - 1).endLine,
-                                    longestLength,
-                                    statementRaw1, thisCoor.x, thisCoor.x + longestLength - 1,
-                                    statementRaw2, thisCoor.y, thisCoor.y + longestLength - 1,
-                                    0);
-                        }
-                    } 
-                } else {
-                    // gapped matching
-                    ArrayList<Statement> statementRaw1 = text1.getRawStatements(k);
-                    ArrayList<Statement> statementRaw2 = text2.getRawStatements(l);
-                    int sizeX = statementRaw1.size();
-                    int sizeY = statementRaw2.size();
-
-                    // populate the scatter plot
-                    HashMap<Coordinate, Integer> coorMap = new HashMap<Coordinate, Integer>();
-                    ArrayList<Coordinate> coorList = new ArrayList<Coordinate>();
-                    for (int x = 0; x < sizeX; x++) {
-                        for (int y = 0; y < sizeY; y++) {
-                            if (statementRaw1.get(x).hashNumber == statementRaw2.get(y).hashNumber) {
-                                Coordinate coor = new Coordinate(x,y);
-                                coorMap.put(coor, statementRaw1.get(x).hashNumber);
-                                coorList.add(coor);
-                            }
-                        }
+                        numPairs++;
                     }
+                }
+            }
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+        kept.report(numCandidates, numPairs, missed);
+    }
 
-                    // used to store the NG-clones
-                    ArrayList<Chain> chainList = new ArrayList<Chain>();
-
-                    // Detect NG-clones
-                    while (coorList.size() != 0) {
-                        Coordinate thisCoor = coorList.get(0);
-
-                        int longestLength = 1;
-
-                        // see how far we can go
-                        Coordinate coorNext;
-                        int currentX = thisCoor.x;
-                        int currentY = thisCoor.y;
-                        while (true) {
-                            // try extend the chain
-                            coorNext = new Coordinate(currentX + 1, currentY + 1);
-                            if (coorMap.get(coorNext) != null) {
-
-                                // remove this since it is 
-                                // part of a NG-chain
-                                coorList.remove(coorNext);
-
-                                // can extend chain
-                                currentX = currentX + 1;
-                                currentY = currentY + 1;
-                                longestLength++;
-                                continue;
-                            } else {
-                                // there is a gap
-                                break;
-                            }
-                        }
+    // only compares the given candidate method pairs, per database file
+    private void compareBetweenIndexed (int mode, int gapSize,
+            HashMap<Integer, HashSet<Long>> candidateMap) {
 
-                        // add to chain list
-                        Chain c = new Chain(thisCoor.x, thisCoor.y, 
-                                currentX, currentY, longestLength);
-                        //System.out.println(thisCoor.x + "!" + thisCoor.y);
-                        //System.out.println(currentX + "!" + currentY);
-                        //System.out.println(longestLength);
-                        chainList.add(c);
-                        // remove this point
-                        coorList.remove(thisCoor);
-                    }
+        // keep the database order of the exhaustive comparison
+        ArrayList<Integer> fileOrder = new ArrayList<Integer>(candidateMap.keySet());
+        Collections.sort(fileOrder);
 
-                    // now have a list of NG chains
-                    // create a hashmap of gaps
-                    HashMap<Chain, ArrayList<Chain>> gapMap = new HashMap<Chain, ArrayList<Chain>>();
-                    for (int i = 0; i < chainList.size(); i++) {
-                        Chain c_i = chainList.get(i);
-
-                        // search for connections
-                        for (int j = i + 1; j < chainList.size(); j++) {
-                            Chain c_j = chainList.get(j);
-                            
-                            // check if the two are near
-                            int dx = distance(c_i.x2, c_j.x1);
-                            int dy = distance(c_i.y2, c_j.y1);
-                            if ( ((0 < dx) && (dx <= gapSize)) &&
-                                    ((0 < dy) && (dy <= gapSize)) ) {
-                                // satistified gap requirement
-                                ArrayList<Chain> c_i_list = gapMap.get(c_j);
-                                if (c_i_list == null) {
-                                    c_i_list = new ArrayList<Chain>();
-                                    c_i_list.add(c_j);
-                                    gapMap.put(c_i, c_i_list);
-                                } else {
-                                    c_i_list.add(c_j);
-                                }
-                            } else {
-                                // optimization
-                                if (distance(c_i.x2, c_j.y1) > gapSize) {
-                                    break;
-                                }
-                            }
+        System.out.println("Comparing against " + fileOrder.size() + " of " + 
+                databasePaths.size() + " database files");
+
+        int counter = 1;
+        for (int i : fileOrder) {
+            // outer loop is the database
+            Text text1 = loadText(i);
+            HashSet<Long> candidates = candidateMap.get(i);
+
+            for (int j = 0; j < project.size(); j++) {
+                // inner loop is the project
+                Text text2 = project.get(j);
+                for (int k = 0; k < text2.getNumMethods(); k++) {
+                    for (int l = 0; l < text1.getNumMethods(); l++) {
+                        if (candidates.contains(HashIndex.packCandidate(j, k, l))) {
+                            methodCompare(text2, k, text1, l, mode, gapSize, result);
                         }
                     }
+                }
+            }
 
-                    // now have a list of gaps
-                    // construct the longest chain
-                    ArrayList<ArrayList<Chain>> masterList = buildChains(chainList, gapMap);
-                    //ArrayList<ArrayList<Chain>> filteredList = new ArrayList<ArrayLIst<Chain>>();
-
-                    // check the length
-                    for (ArrayList<Chain> list : masterList) {
-                        // calculate the total length of the match excluding the gaps
-                        // and prune out repetitive matches
-                        int totalLength = 0;
-                        int totalHashValue = 0;
-                        boolean isRepetitive = true;
-                        // assume there is at least one line and one chain
-                        int baseline = statementRaw1.get(list.get(0).x1).hashNumber;
-                        for (Chain c : list) {
-                            // sum up the length
-                            totalLength = totalLength + c.size;
-
-                            // check on the master side
-                            for (int i = c.x1; i < c.x2; i++) {
-                                // check repetitiveness
-                                if (isRepetitive == true) {
-                                    if (statementRaw1.get(i).hashNumber != baseline) {
-                                        isRepetitive = false;
-                                    }
-                                }
-
-                                // sum up the value
-                                totalHashValue = totalHashValue + statementRaw1.get(i).hashNumber;
-                            }
-                        }
+            System.out.print(counter + "\r");
+            counter++;
+        }
+        System.out.println("");
+    }
+
+    public void textCompare(Text text1, Text text2, int mode, int gapSize) {
+        textCompare(text1, text2, mode, gapSize, result);
+    }
+
+    // clones are reported to the given sink instead of the output
+    public void textCompare(Text text1, Text text2, int mode, int gapSize, CloneSink sink) {
+        for (int k = 0; k < text1.getNumMethods(); k++) {
+            for (int l = 0; l < text2.getNumMethods(); l++) {
+                methodCompare(text1, k, text2, l, mode, gapSize, sink);
+            }
+        }
+    }
+
+    // compare method k of text1 against method l of text2
+    private void methodCompare(Text text1, int k, Text text2, int l, int mode, int gapSize,
+            CloneSink sink) {
+        if (mode == 0) {
+            // exact matching
+            // skip the pair if no run of minNumLines statements is shared
+            if (!text1.mayShareRun(k, text2, l, minNumLines)) {
+                return;
+            }
+
+            // the statements are only needed to report a clone
+            ArrayList<Statement> statementRaw1 = null;
+            ArrayList<Statement> statementRaw2 = null;
+            IntBuffer hash1 = text1.getHashes(k);
+            IntBuffer hash2 = text2.getHashes(l);
+            int sizeX = hash1.limit();
+            int sizeY = hash2.limit();
+
+            // x - statement1
+            // y - statement2
+            // walk the scatter plot and report every maximal diagonal run,
+            // ordered by its first point (x, y)
+            for (int x = 0; x < sizeX; x++) {
+                int h = hash1.get(x);
+                for (int y = 0; y < sizeY; y++) {
+                    if (hash2.get(y) != h) {
+                        continue;
+                    }
+                    // only start from the first point of a run
+                    if (x > 0 && y > 0 && hash1.get(x - 1) == hash2.get(y - 1)) {
+                        continue;
+                    }
+
+                    int longestLength = 1;
+                    while (x + longestLength < sizeX && y + longestLength < sizeY &&
+                            hash1.get(x + longestLength) == hash2.get(y + longestLength)) {
+                        longestLength++;
+                    }
 
-                        if (totalLength >= minNumLines && isRepetitive == false) {
-
-                            // get first element for the starting point
-                            int file1Start = list.get(0).x1;
-                            int file1End = list.get(list.size()-1).x2;
-
-                            // get last element for the ending point
-                            int file2Start = list.get(0).y1;
-                            int file2End = list.get(list.size()-1).y2;
-
-                            result.addClone(databaseDir + text1.getDatabasePath(),
-                                    statementRaw1.get(file1Start).startLine,
-                                    statementRaw1.get(file1End).startLine,
-                                    databaseDir + text2.getDatabasePath(),
-                                    statementRaw2.get(file2Start).startLine,
-                                    statementRaw2.get(file2End).startLine,
-                                    totalLength,
-                                    statementRaw1, file1Start, file1End,
-                                    statementRaw2, file2Start, file2End,
-                                    totalHashValue);
+                    if (longestLength >= minNumLines) {
+                        if (statementRaw1 == null) {
+                            statementRaw1 = text1.getRawStatements(k);
+                            statementRaw2 = text2.getRawStatements(l);
                         }
+                        // the 64-bit hashes are checked by the output
+                        sink.addClone(databaseDir + text1.getDatabasePath(), 
+                                statementRaw1.get(x).startLine,
+                                statementRaw1.get(x + longestLength - 1).endLine,
+                                databaseDir + text2.getDatabasePath(), 
+                                statementRaw2.get(y).startLine,
+                                statementRaw2.get(y + longestLength - 1).endLine,
+                                longestLength,
+                                statementRaw1, x, x + longestLength - 1,
+                                statementRaw2, y, y + longestLength - 1,
+                                MatchGroup.getHashSequence(statementRaw1.subList(x, x + longestLength)));
                     }
                 }
             }
+        } else {
+            // gapped matching
+            gappedCompare(text1, k, text2, l, gapSize, sink);
         }
     }
 
-    static class Coordinate {
-        public int x, y;
-        Coordinate(int x, int y) { this.x = x; this.y = y; }
-        public boolean equals(Object obj) {
-            Coordinate other = (Coordinate) obj;
-            return ((this.x == other.x) && (this.y == other.y));
+    /*
+     * Gapped matching. The maximal diagonal runs (NG-chains) form a DAG,
+     * chain c can be followed by chain d when d starts within gapSize
+     * statements after c ends on both sides. The best continuation of
+     * every chain is computed once, from the last chain backwards, so the
+     * cost is O(chains x neighbours) instead of one path per route.
+     */
+    private void gappedCompare(Text text1, int k, Text text2, int l, int gapSize,
+            CloneSink sink) {
+
+        // the statements are only needed to report a clone
+        ArrayList<Statement> statementRaw1 = null;
+        ArrayList<Statement> statementRaw2 = null;
+        IntBuffer hash1 = text1.getHashes(k);
+        IntBuffer hash2 = text2.getHashes(l);
+        int sizeX = hash1.limit();
+        int sizeY = hash2.limit();
+
+        // Detect NG-clones, ordered by their first point (x, y)
+        ChainTable chains = new ChainTable();
+        for (int x = 0; x < sizeX; x++) {
+            int h = hash1.get(x);
+            for (int y = 0; y < sizeY; y++) {
+                if (hash2.get(y) != h) {
+                    continue;
+                }
+                if (x > 0 && y > 0 && hash1.get(x - 1) == hash2.get(y - 1)) {
+                    continue;
+                }
+                int length = 1;
+                while (x + length < sizeX && y + length < sizeY &&
+                        hash1.get(x + length) == hash2.get(y + length)) {
+                    length++;
+                }
+                chains.add(x, y, x + length - 1, y + length - 1, length);
+            }
         }
-        public int hashCode() {
-            return this.x ^ this.y;
+
+        int numChains = chains.size;
+        if (numChains == 0) {
+            return;
         }
-    } 
 
-    static class Chain {
-        public int x1, y1, x2, y2;
-        public int size;
-        Chain(int x1, int y1, int x2, int y2, int size) {
-            this.x1 = x1;
-            this.y1 = y1;
-            this.x2 = x2;
-            this.y2 = y2;
-            this.size = size;
+        // own values of every chain, taken over the master side
+        // without its last statement as the matcher always did
+        int[] ownState = new int[numChains];
+        int[] ownValue = new int[numChains];
+        for (int i = 0; i < numChains; i++) {
+            int state = UNIFORM_EMPTY;
+            int value = 0;
+            for (int x = chains.x1[i]; x < chains.x2[i]; x++) {
+                int h = hash1.get(x);
+                if (state == UNIFORM_EMPTY) {
+                    state = UNIFORM;
+                    value = h;
+                } else if (state == UNIFORM && value != h) {
+                    state = UNIFORM_MIXED;
+                }
+            }
+            ownState[i] = state;
+            ownValue[i] = value;
         }
-        public boolean equals(Object obj) {
-            Chain other = (Chain) obj;
-            return ((this.x1 == other.x1) && (this.y1 == other.y1) &&
-                    (this.x2 == other.x2) && (this.y2 == other.y2) &&
-                    this.size == other.size);
+
+        // best continuation of every chain, the successors of a chain
+        // always come later in the list
+        int[] best = new int[numChains];
+        int[] next = new int[numChains];
+        int[] last = new int[numChains];
+        int[] pathState = new int[numChains];
+        int[] pathValue = new int[numChains];
+        for (int i = numChains - 1; i >= 0; i--) {
+            int bestNext = -1;
+            int bestLength = 0;
+
+            // search for connections
+            int limit = chains.x2[i] + gapSize;
+            for (int j = i + 1; j < numChains && chains.x1[j] <= limit; j++) {
+                int dx = chains.x1[j] - chains.x2[i];
+                int dy = chains.y1[j] - chains.y2[i];
+                if (0 < dx && dx <= gapSize && 0 < dy && dy <= gapSize) {
+                    // satistified gap requirement
+                    if (best[j] > bestLength) {
+                        bestLength = best[j];
+                        bestNext = j;
+                    }
+                }
+            }
+
+            best[i] = chains.size(i) + bestLength;
+            next[i] = bestNext;
+            if (bestNext < 0) {
+                last[i] = i;
+                pathState[i] = ownState[i];
+                pathValue[i] = ownValue[i];
+            } else {
+                last[i] = last[bestNext];
+                mergeUniform(i, ownState[i], ownValue[i],
+                        pathState[bestNext], pathValue[bestNext], pathState, pathValue);
+            }
         }
-        public int hashCode() {
-            return this.x1 ^ this.y1 + this.x2 ^ this.y2 + size;
+
+        // check the length of the best sequence starting at every chain
+        for (int i = 0; i < numChains; i++) {
+            int totalLength = best[i];
+
+            // prune out repetitive matches
+            boolean isRepetitive = pathState[i] == UNIFORM_EMPTY ||
+                (pathState[i] == UNIFORM && pathValue[i] == hash1.get(chains.x1[i]));
+
+            if (totalLength >= minNumLines && isRepetitive == false) {
+
+                if (statementRaw1 == null) {
+                    statementRaw1 = text1.getRawStatements(k);
+                    statementRaw2 = text2.getRawStatements(l);
+                }
+
+                // the chains only matched on the 32-bit hashes
+                long[] statementHashes = getChainHashes(chains, i, next, totalLength,
+                        statementRaw1, statementRaw2);
+                if (statementHashes == null) {
+                    continue;
+                }
+
+                int file1Start = chains.x1[i];
+                int file1End = chains.x2[last[i]];
+                int file2Start = chains.y1[i];
+                int file2End = chains.y2[last[i]];
+
+                sink.addClone(databaseDir + text1.getDatabasePath(),
+                        statementRaw1.get(file1Start).startLine,
+                        statementRaw1.get(file1End).startLine,
+                        databaseDir + text2.getDatabasePath(),
+                        statementRaw2.get(file2Start).startLine,
+                        statementRaw2.get(file2End).startLine,
+                        totalLength,
+                        statementRaw1, file1Start, file1End,
+                        statementRaw2, file2Start, file2End,
+                        statementHashes);
+            }
         }
     }
-    
-    static class Gap {
-        Chain c1;
-        Chain c2;
-        Gap(Chain c1, Chain c2) {
-            this.c1 = c1;
-            this.c2 = c2;
+
+    /*
+     * The 64-bit hashes of the statements of the chains from first on,
+     * following next, or null if they differ on the two sides. The gaps
+     * are left out, so both sides give the same sequence.
+     */
+    private static long[] getChainHashes(ChainTable chains, int first, int[] next, int length,
+            ArrayList<Statement> statementRaw1, ArrayList<Statement> statementRaw2) {
+        long[] hashes = new long[length];
+        int n = 0;
+        for (int c = first; c >= 0; c = next[c]) {
+            for (int d = 0; d < chains.size(c); d++) {
+                long hash = statementRaw1.get(chains.x1[c] + d).longHash;
+                if (statementRaw2.get(chains.y1[c] + d).longHash != hash) {
+                    return null;
+                }
+                hashes[n++] = hash;
+            }
         }
-        public boolean equals(Object obj) {
-            Gap other = (Gap) obj;
-            return ((this.c1 == other.c1) && (this.c2 == other.c2));
+        return hashes;
+    }
+
+    // counts the clones reported by a comparison
+    static class CloneCounter implements CloneSink {
+        long numClones = 0;
+
+        public void addClone(String file1, int lineStart1, int lineEnd1,
+                String file2, int lineStart2, int lineEnd2, int length,
+                ArrayList<Statement> statementRaw1, int statementStart1, int statementEnd1,
+                ArrayList<Statement> statementRaw2, int statementStart2, int statementEnd2,
+                long[] statementHashes) {
+            numClones++;
         }
-        public int hashCode() {
-            return c1.hashCode() + c2.hashCode();
+
+        void report(long numCandidates, long numPairs, CloneCounter missed) {
+            long total = numClones + missed.numClones;
+            System.out.println("LSH compared " + numCandidates + " of " + numPairs + " method pairs");
+            if (total == 0) {
+                System.out.println("LSH recall: no clones in the exhaustive comparison");
+            } else {
+                System.out.println("LSH recall: " + numClones + " of " + total + " clones (" +
+                        (100.0 * numClones / total) + "%)");
+            }
         }
     }
-}
 
+    // states of a run of hashes: no hash yet, all equal, or different
+    private static final int UNIFORM_EMPTY = 0;
+    private static final int UNIFORM = 1;
+    private static final int UNIFORM_MIXED = 2;
+
+    private static void mergeUniform(int i, int state1, int value1, int state2, int value2,
+            int[] state, int[] value) {
+        if (state1 == UNIFORM_EMPTY) {
+            state[i] = state2;
+            value[i] = value2;
+        } else if (state2 == UNIFORM_EMPTY) {
+            state[i] = state1;
+            value[i] = value1;
+        } else if (state1 == UNIFORM && state2 == UNIFORM && value1 == value2) {
+            state[i] = UNIFORM;
+            value[i] = value1;
+        } else {
+            state[i] = UNIFORM_MIXED;
+            value[i] = 0;
+        }
+    }
 
+    // NG-chains as parallel arrays: first point, last point and length
+    static class ChainTable {
+        int[] x1 = new int[16];
+        int[] y1 = new int[16];
+        int[] x2 = new int[16];
+        int[] y2 = new int[16];
+        int[] length = new int[16];
+        int size = 0;
+
+        void add(int startX, int startY, int endX, int endY, int len) {
+            if (size == x1.length) {
+                x1 = Arrays.copyOf(x1, size * 2);
+                y1 = Arrays.copyOf(y1, size * 2);
+                x2 = Arrays.copyOf(x2, size * 2);
+                y2 = Arrays.copyOf(y2, size * 2);
+                length = Arrays.copyOf(length, size * 2);
+            }
+            x1[size] = startX;
+            y1[size] = startY;
+            x2[size] = endX;
+            y2[size] = endY;
+            length[size] = len;
+            size++;
+        }
 
+        int size(int i) {
+            return length[i];
+        }
+    }
+}
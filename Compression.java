@@ -0,0 +1,81 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Deflate compression of single blocks of the .db and result files.
+ * A block is framed with its raw and stored length, so that every block
+ * can be read on its own and the files stay randomly accessible.
+ */
+public class Compression {
+
+    // speed over size by default, the cache is written on every build
+    public static int level = Deflater.BEST_SPEED;
+
+    public static byte[] compress(byte[] raw) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                bos.write(buffer, 0, length);
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static byte[] decompress(byte[] data, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                length = length + n;
+            }
+            if (length != rawLength) {
+                throw new IOException("compressed block is " + length + " bytes instead of " + rawLength);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // raw length, stored length, then the compressed bytes
+    public static void writeBlock(DataOutput out, byte[] raw) throws IOException {
+        byte[] data = compress(raw);
+        TextCodec.writeVarInt(out, raw.length);
+        TextCodec.writeVarInt(out, data.length);
+        out.write(data);
+    }
+
+    public static byte[] readBlock(DataInput in) throws IOException {
+        int rawLength = TextCodec.readVarInt(in);
+        byte[] data = new byte[TextCodec.readVarInt(in)];
+        in.readFully(data);
+        return decompress(data, rawLength);
+    }
+
+    public static DataInputStream openBlock(DataInput in) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(readBlock(in)));
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+/*
+ * Bytes against CPU time of the .db and result formats with and without
+ * compression, on the cached files of a database directory and, if
+ * given, an exported result file. The .db files are encoded and decoded
+ * in memory, the result file is written to a temporary file next to it.
+ *
+ * usage: java CompressionBenchmark <database dir> [result file]
+ */
+public class CompressionBenchmark {
+
+    private static final String[] MODE_NAMES = {"none", "fastest", "default", "smallest"};
+    private static final int[] MODE_LEVELS = {0, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION,
+        Deflater.BEST_COMPRESSION};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: java CompressionBenchmark <database dir> [result file]");
+            System.exit(0);
+        }
+
+        benchmarkCache(args[0]);
+        if (args.length > 1) {
+            benchmarkResults(args[1]);
+        }
+    }
+
+    private static void benchmarkCache(String databaseDir) throws IOException {
+        List<String> fileList = Database.getFileList(databaseDir);
+        int numModes = MODE_NAMES.length;
+        long[] bytes = new long[numModes];
+        long[] writeTime = new long[numModes];
+        long[] readTime = new long[numModes];
+        int numFiles = 0;
+
+        for (String absPath : fileList) {
+            Text txt;
+            try {
+                txt = TextCodec.read(Text.getDBpath(absPath));
+            } catch (IOException e) {
+                // not built, or built by another version
+                continue;
+            }
+            // the name lists are part of the measure, not their first read from disk
+            for (Method method : txt.methodList) {
+                for (Statement s : method.getMethodStatements()) {
+                    s.getNameList();
+                }
+            }
+
+            try {
+                for (int mode = 0; mode < numModes; mode++) {
+                    setMode(mode);
+                    long start = System.nanoTime();
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    TextCodec.write(txt, new DataOutputStream(bos));
+                    byte[] data = bos.toByteArray();
+                    writeTime[mode] = writeTime[mode] + System.nanoTime() - start;
+                    bytes[mode] = bytes[mode] + data.length;
+
+                    start = System.nanoTime();
+                    TextCodec.read(new DataInputStream(new ByteArrayInputStream(data)));
+                    readTime[mode] = readTime[mode] + System.nanoTime() - start;
+                }
+            } catch (IOException e) {
+                System.out.println("Error while encoding " + absPath + "\n" + e);
+                System.exit(0);
+            }
+            numFiles++;
+            System.out.print(numFiles + "\r");
+        }
+        setMode(0);
+
+        System.out.println("\nDatabase cache of " + numFiles + " files in " + databaseDir);
+        printTable(bytes, writeTime, readTime);
+    }
+
+    private static void benchmarkResults(String resultPath) {
+        Output output = new Output(1, false, false, 1);
+        output.loadResults(resultPath);
+        String tempPath = resultPath + ".bench";
+
+        int numModes = MODE_NAMES.length;
+        long[] bytes = new long[numModes];
+        long[] writeTime = new long[numModes];
+        long[] readTime = new long[numModes];
+        for (int mode = 0; mode < numModes; mode++) {
+            setMode(mode);
+            long start = System.nanoTime();
+            output.saveResults(tempPath);
+            writeTime[mode] = System.nanoTime() - start;
+            bytes[mode] = new File(tempPath).length();
+
+            start = System.nanoTime();
+            ResultFile resultFile = ResultFile.open(tempPath);
+            for (Long key : resultFile.getGroupKeys()) {
+                resultFile.loadGroup(key);
+            }
+            readTime[mode] = System.nanoTime() - start;
+        }
+        setMode(0);
+        new File(tempPath).delete();
+
+        System.out.println("\nResults of " + output.getGroupKeys().size() + " match groups in " + resultPath);
+        printTable(bytes, writeTime, readTime);
+    }
+
+    private static void setMode(int mode) {
+        TextCodec.compress = mode > 0;
+        ResultFile.compress = mode > 0;
+        if (mode > 0) {
+            Compression.level = MODE_LEVELS[mode];
+        } else {
+            Compression.level = Deflater.BEST_SPEED;
+        }
+    }
+
+    private static void printTable(long[] bytes, long[] writeTime, long[] readTime) {
+        System.out.format("%-10s %14s %8s %10s %10s%n", "mode", "bytes", "ratio", "write ms", "read ms");
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            System.out.format("%-10s %14d %8.3f %10d %10d%n", MODE_NAMES[mode], bytes[mode],
+                    (double) bytes[mode] / Math.max(bytes[0], 1),
+                    writeTime[mode] / 1000000, readTime[mode] / 1000000);
+        }
+    }
+}
@@ -17,6 +17,16 @@ public class ConfigFile{
     public int matchAlgorithm = 0;
     public int matchMode = 0;
     public int meshBlockSize = 0;
+    public int numThreads = 1;
+    public int numWorkers = 1;
+    public String workerHeap = "2000m";
+    public int textCacheSize = 256;
+    public boolean incremental = false;
+    public int fingerprintSize = 0;
+    public double lshThreshold = 0;
+    public int minHashSize = 64;
+    public int lshBands = 16;
+    public boolean lshRecall = false;
     public boolean debug = false;
     public boolean removeEmpty = false;
     public boolean buildDatabase = false;
@@ -30,6 +40,14 @@ public class ConfigFile{
     public boolean enableOneMethod = false;
     public boolean buildTFIDF = false;
     public boolean loadDatabaseFilePaths = false;
+    public boolean corpusStore = true;
+    public boolean incrementalBuild = false;
+    public int buildThreads = 1;
+    public int scanThreads = 4;
+    public int parseBatchSize = 1;
+    public boolean compressCache = false;
+    public String tokenizer = "jdt";
+    public boolean compressResults = false;
     public int aprioriMinSupport = 0;
 
     private String getTextValue(Element doc, String tag) {
@@ -130,8 +148,8 @@ public class ConfigFile{
         secondNode = (Element) nl2.item(0);
         value = secondNode.getFirstChild().getNodeValue();
         matchAlgorithm = Integer.parseInt(value);
-        if (matchAlgorithm != 0 && matchAlgorithm != 1) {
-            System.out.println("Invalid alogrithm choice, must be 1 or 0");
+        if (matchAlgorithm != 0 && matchAlgorithm != 1 && matchAlgorithm != 2) {
+            System.out.println("Invalid alogrithm choice, must be 0 (exact), 1 (gapped) or 2 (suffix array)");
             System.exit(0);
         }
         System.out.println("Algorithm: " + matchAlgorithm);
@@ -152,6 +170,111 @@ public class ConfigFile{
         meshBlockSize = Integer.parseInt(value);
         System.out.println("Mesh matching block size: " + meshBlockSize);
 
+        // optional, defaults to a single thread
+        value = getTextValue(firstNode, "numThreads");
+        if (value != null) {
+            numThreads = Integer.parseInt(value);
+            if (numThreads < 1) {
+                System.out.println("Invalid number of threads, must be 1 or higher");
+                System.exit(0);
+            }
+        }
+        System.out.println("Number of threads: " + numThreads);
+
+        // optional, mesh comparison on several worker processes
+        value = getTextValue(firstNode, "numWorkers");
+        if (value != null) {
+            numWorkers = Integer.parseInt(value);
+            if (numWorkers < 1) {
+                System.out.println("Invalid number of workers, must be 1 or higher");
+                System.exit(0);
+            }
+        }
+        System.out.println("Number of workers: " + numWorkers);
+
+        value = getTextValue(firstNode, "workerHeap");
+        if (value != null) {
+            workerHeap = value;
+        }
+        if (numWorkers > 1) {
+            System.out.println("Worker heap: " + workerHeap);
+        }
+
+        // optional, megabytes of database texts kept between the mesh blocks
+        value = getTextValue(firstNode, "textCacheSize");
+        if (value != null) {
+            textCacheSize = Integer.parseInt(value);
+            if (textCacheSize < 0) {
+                System.out.println("Invalid text cache size, must be 0 or higher");
+                System.exit(0);
+            }
+        }
+        System.out.println("Text cache size: " + textCacheSize + " MB");
+
+        // optional, only compare the files changed since the saved results
+        value = getTextValue(firstNode, "incremental");
+        if (value != null) {
+            if (value.equals("true")) {
+                incremental = true;
+            } else if (value.equals("false")) {
+                incremental = false;
+            } else {
+                System.out.println("Invalid incremental option, must be true/false");
+                System.exit(0);
+            }
+        }
+        System.out.println("Incremental: " + incremental);
+
+        // optional, defaults to fingerprints of minNumLines statements
+        value = getTextValue(firstNode, "fingerprintSize");
+        if (value != null) {
+            fingerprintSize = Integer.parseInt(value);
+            if (fingerprintSize < 1 || fingerprintSize > minNumLines) {
+                System.out.println("Invalid fingerprint size, must be between 1 and minNumLines");
+                System.exit(0);
+            }
+        }
+        System.out.println("Fingerprint size: " + fingerprintSize);
+
+        // optional, LSH candidates for gapped matching, off by default
+        value = getTextValue(firstNode, "lshThreshold");
+        if (value != null) {
+            lshThreshold = Double.parseDouble(value);
+            if (lshThreshold < 0 || lshThreshold > 1) {
+                System.out.println("Invalid LSH threshold, must be between 0 and 1");
+                System.exit(0);
+            }
+        }
+        System.out.println("LSH threshold: " + lshThreshold);
+
+        value = getTextValue(firstNode, "minHashSize");
+        if (value != null) {
+            minHashSize = Integer.parseInt(value);
+        }
+        value = getTextValue(firstNode, "lshBands");
+        if (value != null) {
+            lshBands = Integer.parseInt(value);
+        }
+        if (lshBands < 1 || minHashSize < lshBands || minHashSize % lshBands != 0) {
+            System.out.println("Invalid LSH bands, must divide the MinHash size");
+            System.exit(0);
+        }
+        if (lshThreshold > 0) {
+            System.out.println("MinHash size: " + minHashSize + ", LSH bands: " + lshBands);
+        }
+
+        value = getTextValue(firstNode, "lshRecall");
+        if (value != null) {
+            if (value.equals("true")) {
+                lshRecall = true;
+            } else if (value.equals("false")) {
+                lshRecall = false;
+            } else {
+                System.out.println("Invalid lshRecall option, must be true/false");
+                System.exit(0);
+            }
+        }
+
         nl2 = firstNode.getElementsByTagName("gapSize");
         secondNode = (Element) nl2.item(0);
         value = secondNode.getFirstChild().getNodeValue();
@@ -243,6 +366,93 @@ public class ConfigFile{
         }
         System.out.println("Load cached database path list: " + loadDatabaseFilePaths);
 
+        // optional, read the database through the memory-mapped corpus store
+        value = getTextValue(firstNode, "corpusStore");
+        if (value != null) {
+            if (value.equals("true")) {
+                corpusStore = true;
+            } else if (value.equals("false")) {
+                corpusStore = false;
+            } else {
+                System.out.println("Invalid corpusStore option, must be true/false");
+                System.exit(0);
+            }
+        }
+        System.out.println("Corpus store: " + corpusStore);
+
+        // optional, only tokenize the sources changed since the last build
+        value = getTextValue(firstNode, "incrementalBuild");
+        if (value != null) {
+            if (value.equals("true")) {
+                incrementalBuild = true;
+            } else if (value.equals("false")) {
+                incrementalBuild = false;
+            } else {
+                System.out.println("Invalid incrementalBuild option, must be true/false");
+                System.exit(0);
+            }
+        }
+        System.out.println("Incremental build: " + incrementalBuild);
+
+        // optional, threads tokenizing the files when building the database
+        value = getTextValue(firstNode, "buildThreads");
+        if (value != null) {
+            buildThreads = Integer.parseInt(value);
+            if (buildThreads < 1) {
+                System.out.println("Invalid number of build threads, must be 1 or higher");
+                System.exit(0);
+            }
+        }
+        System.out.println("Number of build threads: " + buildThreads);
+
+        // optional, threads listing the directories when looking for files
+        value = getTextValue(firstNode, "scanThreads");
+        if (value != null) {
+            scanThreads = Integer.parseInt(value);
+            if (scanThreads < 1) {
+                System.out.println("Invalid number of scan threads, must be 1 or higher");
+                System.exit(0);
+            }
+        }
+        System.out.println("Number of scan threads: " + scanThreads);
+
+        // optional, files handed to the parser at once when building
+        value = getTextValue(firstNode, "parseBatchSize");
+        if (value != null) {
+            parseBatchSize = Integer.parseInt(value);
+            if (parseBatchSize < 1) {
+                System.out.println("Invalid parse batch size, must be 1 or higher");
+                System.exit(0);
+            }
+        }
+        System.out.println("Parse batch size: " + parseBatchSize);
+
+        // optional, compress the .db files written by the build
+        value = getTextValue(firstNode, "compressCache");
+        if (value != null) {
+            if (value.equals("true")) {
+                compressCache = true;
+            } else if (value.equals("false")) {
+                compressCache = false;
+            } else {
+                System.out.println("Invalid compressCache option, must be true/false");
+                System.exit(0);
+            }
+        }
+        System.out.println("Compress cache: " + compressCache);
+
+        // optional, jdt or lexer, what finds the statements of the files when building
+        value = getTextValue(firstNode, "tokenizer");
+        if (value != null) {
+            if (value.equals("jdt") || value.equals("lexer")) {
+                tokenizer = value;
+            } else {
+                System.out.println("Invalid tokenizer option, must be jdt/lexer");
+                System.exit(0);
+            }
+        }
+        System.out.println("Tokenizer: " + tokenizer);
+
     }
 
     private void loadOutputSettings(Element doc) {
@@ -299,6 +509,20 @@ public class ConfigFile{
             resultPath = secondNode.getFirstChild().getNodeValue();
             System.out.println("Result path: " + resultPath);
         }
+
+        // optional, compress the segments of the exported results
+        value = getTextValue(firstNode, "compressResults");
+        if (value != null) {
+            if (value.equals("true")) {
+                compressResults = true;
+            } else if (value.equals("false")) {
+                compressResults = false;
+            } else {
+                System.out.println("Invalid compressResults option, must be true/false");
+                System.exit(0);
+            }
+        }
+        System.out.println("Compress results: " + compressResults);
     }
 
     public void loadConfig(String filePath) {
@@ -0,0 +1,294 @@
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Columnar store of the hot data of the whole database in one file:
+ * packed int columns of statement hashes, lines and scope levels, the
+ * method fingerprints, and offset tables from files to methods and from
+ * methods to statements. The columns are memory-mapped, the comparison
+ * reads methods as views into them. The .db files are still used for
+ * the statement objects of reported clones.
+ */
+public class CorpusStore {
+
+    public static final String FILE_NAME = "corpus.tmp";
+
+    private static final int MAGIC = 0x434F5250;   // "CORP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 128;
+
+    // column order in the file
+    private static final int FILE_METHOD_START = 0;
+    private static final int METHOD_STATEMENT_START = 1;
+    private static final int METHOD_FINGERPRINT_START = 2;
+    private static final int METHOD_START_LINE = 3;
+    private static final int METHOD_END_LINE = 4;
+    private static final int FINGERPRINT_SIZE = 5;
+    private static final int FINGERPRINT_WINDOW = 6;
+    private static final int HASH = 7;
+    private static final int START_LINE = 8;
+    private static final int END_LINE = 9;
+    private static final int SCOPE_LEVEL = 10;
+    private static final int FINGERPRINT = 11;
+    private static final int NUM_COLUMNS = 12;
+
+    List<String> fileList;
+    String databaseDir;
+    int minNumLines;
+
+    IntBuffer[] columns = new IntBuffer[NUM_COLUMNS];
+
+    private CorpusStore(List<String> fileListIn, String databaseDirIn, int minNumLinesIn) {
+        fileList = fileListIn;
+        databaseDir = databaseDirIn;
+        minNumLines = minNumLinesIn;
+    }
+
+    // identifies the file list and the sources its .db files were built from
+    public static long getListDigest(Manifest manifest) {
+        long digest = 17;
+        for (int i = 0; i < manifest.fileList.size(); i++) {
+            digest = digest * 31 + manifest.fileList.get(i).hashCode();
+            digest = digest * 31 + manifest.builtDigests[i];
+        }
+        return digest;
+    }
+
+    public int getNumFiles() {
+        return fileList.size();
+    }
+
+    public StoreText getText(int fileIndex) {
+        return new StoreText(this, fileIndex);
+    }
+
+    int getFirstMethod(int fileIndex) {
+        return columns[FILE_METHOD_START].get(fileIndex);
+    }
+
+    int getNumMethods(int fileIndex) {
+        return columns[FILE_METHOD_START].get(fileIndex + 1) - columns[FILE_METHOD_START].get(fileIndex);
+    }
+
+    // a view of column c from position from to to
+    private IntBuffer view(int c, int from, int to) {
+        IntBuffer buffer = columns[c].duplicate();
+        buffer.limit(to);
+        buffer.position(from);
+        return buffer.slice();
+    }
+
+    IntBuffer getHashes(int method) {
+        IntBuffer starts = columns[METHOD_STATEMENT_START];
+        return view(HASH, starts.get(method), starts.get(method + 1));
+    }
+
+    // null if the method has no fingerprints
+    IntBuffer getFingerprints(int method) {
+        if (columns[FINGERPRINT_SIZE].get(method) == 0) {
+            return null;
+        }
+        IntBuffer starts = columns[METHOD_FINGERPRINT_START];
+        return view(FINGERPRINT, starts.get(method), starts.get(method + 1));
+    }
+
+    int getFingerprintSize(int method) {
+        return columns[FINGERPRINT_SIZE].get(method);
+    }
+
+    int getFingerprintWindow(int method) {
+        return columns[FINGERPRINT_WINDOW].get(method);
+    }
+
+    /*
+     * Map the store at filePath. Returns null if it is missing or was
+     * built for another file list, other file contents or minNumLines.
+     */
+    public static CorpusStore open(String filePath, Manifest manifest, String databaseDir, int minNumLines) {
+        File f = new File(filePath);
+        if (!f.exists() || f.isDirectory()) {
+            return null;
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return null;
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION ||
+                    header.getInt() != minNumLines ||
+                    header.getInt() != manifest.fileList.size() ||
+                    header.getLong() != getListDigest(manifest)) {
+                return null;
+            }
+
+            int[] lengths = new int[NUM_COLUMNS];
+            for (int c = 0; c < NUM_COLUMNS; c++) {
+                lengths[c] = header.getInt();
+            }
+
+            CorpusStore store = new CorpusStore(manifest.fileList, databaseDir, minNumLines);
+            long offset = HEADER_SIZE;
+            for (int c = 0; c < NUM_COLUMNS; c++) {
+                long size = (long) lengths[c] * 4;
+                if (offset + size > channel.size()) {
+                    return null;
+                }
+                // the mapping stays valid after the channel is closed
+                store.columns[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                offset = offset + size;
+            }
+            return store;
+        } catch (IOException e) {
+            System.out.println("Error while mapping corpus store\n" + e);
+            return null;
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing channel\n" + e);
+            }
+        }
+    }
+
+    // rebuild the store from the cached .db files
+    public static void build(String filePath, Manifest manifest, String databaseDir, int minNumLines) {
+        System.out.println("\nBuilding corpus store for " + manifest.fileList.size() + " files");
+        Builder builder = new Builder();
+        for (int i = 0; i < manifest.fileList.size(); i++) {
+            Text txt = Database.loadSingleFile(manifest.fileList.get(i), databaseDir, minNumLines, false);
+            builder.addText(i, txt);
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+        builder.save(filePath, manifest, minNumLines);
+    }
+
+    static class IntList {
+        int[] data = new int[1024];
+        int size = 0;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size] = value;
+            size++;
+        }
+    }
+
+    /* Collects the columns while the cache is built, files come in list order */
+    public static class Builder implements TextIndex {
+
+        IntList[] columnData = new IntList[NUM_COLUMNS];
+
+        public Builder() {
+            for (int c = 0; c < NUM_COLUMNS; c++) {
+                columnData[c] = new IntList();
+            }
+            columnData[FILE_METHOD_START].add(0);
+            columnData[METHOD_STATEMENT_START].add(0);
+            columnData[METHOD_FINGERPRINT_START].add(0);
+        }
+
+        public void addText(int fileIndex, Text txt) {
+            for (int m = 0; m < txt.getNumMethods(); m++) {
+                Method method = txt.getMethod(m);
+                columnData[METHOD_START_LINE].add(method.getStart());
+                columnData[METHOD_END_LINE].add(method.getEnd());
+
+                for (Statement s : method.getMethodStatements()) {
+                    columnData[HASH].add(s.hashNumber);
+                    columnData[START_LINE].add(s.startLine);
+                    columnData[END_LINE].add(s.endLine);
+                    columnData[SCOPE_LEVEL].add(s.scopeLevel);
+                }
+                columnData[METHOD_STATEMENT_START].add(columnData[HASH].size);
+
+                if (method.fingerprints == null) {
+                    columnData[FINGERPRINT_SIZE].add(0);
+                    columnData[FINGERPRINT_WINDOW].add(0);
+                } else {
+                    columnData[FINGERPRINT_SIZE].add(method.fingerprintSize);
+                    columnData[FINGERPRINT_WINDOW].add(method.fingerprintWindow);
+                    for (int fingerprint : method.fingerprints) {
+                        columnData[FINGERPRINT].add(fingerprint);
+                    }
+                }
+                columnData[METHOD_FINGERPRINT_START].add(columnData[FINGERPRINT].size);
+            }
+            columnData[FILE_METHOD_START].add(columnData[METHOD_START_LINE].size);
+        }
+
+        public void save(String filePath, Manifest manifest, int minNumLines) {
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(minNumLines);
+                header.putInt(manifest.fileList.size());
+                header.putLong(getListDigest(manifest));
+                for (int c = 0; c < NUM_COLUMNS; c++) {
+                    header.putInt(columnData[c].size);
+                }
+                header.position(0);
+                writeFully(channel, header);
+
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                for (int c = 0; c < NUM_COLUMNS; c++) {
+                    IntList column = columnData[c];
+                    for (int i = 0; i < column.size; i++) {
+                        if (!buffer.hasRemaining()) {
+                            buffer.flip();
+                            writeFully(channel, buffer);
+                            buffer.clear();
+                        }
+                        buffer.putInt(column.data[i]);
+                    }
+                }
+                buffer.flip();
+                writeFully(channel, buffer);
+            } catch (IOException e) {
+                System.out.println("Error while writing corpus store\n" + e);
+                System.exit(0);
+            } finally {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error while closing channel\n" + e);
+                }
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
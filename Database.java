@@ -1,10 +1,4 @@
-import org.apache.commons.io.FilenameUtils;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
-import java.io.Serializable;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -15,64 +9,35 @@ import java.io.IOException;
 import org.apache.commons.io.FileUtils;
 import java.util.Collection;
 
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
-
 import java.io.File;
 
 import java.lang.Runtime;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.lang.ProcessBuilder;
-import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Database {
 
-    public static List<String> generateFileList(String dir_name, String filePath) throws IOException {
-        List<String> listNames = new ArrayList<String>();
-
-        String command = "find " + dir_name + " -name \"*.java\"";
+    // threads tokenizing files in constructCache
+    public static int numThreads = 1;
 
-        System.out.println("Obtaining a list of files");
+    // threads listing directories when looking for files
+    public static int numScanThreads = 4;
 
-        // find . -not -path "*/\.*" -type f -name "*.java"
-        ProcessBuilder builder = new ProcessBuilder("find", 
-                dir_name.substring(0, dir_name.length()-1), 
-                "-not", "-path", "*/\\.*",
-                "-type", "f", "-name", "*.java");
-        builder.redirectErrorStream(true);
-        Process process = builder.start();
-
-        InputStream is = process.getInputStream();
-        InputStreamReader isr = new InputStreamReader(is);
-        BufferedReader br = new BufferedReader(isr);
-        String line;
-        while ((line = br.readLine()) != null) {
-            listNames.add(line);
-        }
-        is.close();
-        isr.close();
-        br.close();
-        System.out.println("Done obtaining list of files!");
+    // files queued per thread in a parallel build
+    private static final int FILES_PER_THREAD = 4;
 
-        // Serialize file and write to file
-        serializeToFile(filePath,listNames);
-
-        return listNames;
-
-    }
+    // files handed to the parser at once, 1 parses every file on its own
+    public static int parseBatchSize = 1;
 
-    private static void serializeToFile(String filePath, Object obj) {
+    private static void serializeToFile(String filePath, Text txt) {
 
         try {
-            FileOutputStream fout = new FileOutputStream(filePath);
-            ObjectOutputStream oos = new ObjectOutputStream(fout);
-            oos.writeObject(obj);
-            fout.close();
-            oos.close();
+            TextCodec.write(txt, filePath);
         } catch (Exception e) {
             System.out.println("Error in serializeToFile");
             System.exit(0);
@@ -80,91 +45,51 @@ public class Database {
 
     }
 
-    public static List<String> loadFileList(String filePath) throws IOException {
-
-        List<String> listNames = null;
-        FileInputStream fin = null;
-        ObjectInputStream ois = null;
-
-        try {
-            // Load serialized file
-            fin = new FileInputStream(filePath);
-            ois = new ObjectInputStream(fin);
-            listNames = (List<String>) ois.readObject();
-        } catch (Exception e) {
-            System.out.println("Error while loading file list: " + e);
-            System.exit(0);
-        } finally {
-            if (ois != null) {
-                ois.close();
-            }
-            if (fin != null) {
-                fin.close();
-            }
-        }
-
-        return listNames;
-
-    }
-
+    // all the .java files under dir_name, sorted, symbolic links are followed
     public static List<String> getFileList(String dir_name) throws IOException {
-        List<String> fileList = new ArrayList<String>();
-
-        Path dir = FileSystems.getDefault().getPath( dir_name );
-        DirectoryStream<Path> stream = Files.newDirectoryStream( dir);
-        for (Path path : stream) {
-
-            String absPath = path.toString();
-            if (Files.isDirectory(path)) {
-                // directory
-                List<String> new_file_list = getFileList(absPath);
-                fileList.addAll(new_file_list);
-            } else {
-                // file, check for the extension
-                String extension = FilenameUtils.getExtension(absPath);
-                String java_ext = "java";
-                if (extension.equals(java_ext)) {
-                    fileList.add(absPath);
-                    //System.out.println(absPath);
-                }
-            }
-        }
-        stream.close();
-
-        return fileList;
+        return FileWalker.walkPaths(dir_name, false, true, numScanThreads);
     }
 
     public static Text loadSingleFile (String filePath, String databaseDir, int minNumLines, boolean debug) {
-        FileInputStream fin = null;
-        ObjectInputStream ois = null;
         try {
             String dbPath = Text.getDBpath(filePath);
 
             // Load serialized file
-            fin = new FileInputStream(dbPath);
-            ois = new ObjectInputStream(fin);
-            Text txt = (Text) ois.readObject();
-
-            return txt;
+            return TextCodec.read(dbPath);
         } catch (Exception e) {
             System.out.println("Error while loading single file\n" + filePath + "\n" + e);
             Text txt = repairDatabaseFile(minNumLines, debug, filePath, databaseDir);
             return txt;
-        } finally {
+        }
+    }
 
-            try {
-                ois.close();
-                fin.close();
-            } catch (Exception e) {
-                System.out.println("Error while closing stream\n" + e);
+    /*
+     * The .db file of filePath to take comments from, null if it cannot be
+     * read or the manifest does not show it was built from the current source.
+     */
+    public static Text loadCommentText(String filePath, Manifest manifest) {
+        if (manifest == null || !manifest.isBuiltFromSource(filePath)) {
+            return null;
+        }
+        try {
+            return TextCodec.read(Text.getDBpath(filePath));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // the comments of the method of txt around the lines, null if it does not have it
+    public static ArrayList<CommentMap> getMethodComments(Text txt, int startLine, int endLine) {
+        for (Method method : txt.methodList) {
+            if (method.getStart() <= startLine && endLine <= method.getEnd()) {
+                return method.getComments();
             }
         }
+        return null;
     }
 
     public static void loadCache (ArrayList<Text> textList,
             boolean debug, List<String> fileList, String dir_name) {
-        FileInputStream fin = null;
-        ObjectInputStream ois = null;
         try {
             int counter = 1;
             for (String absPath : fileList) {
@@ -176,10 +101,7 @@ public class Database {
                 }
 
                 // Load serialized file
-                fin = new FileInputStream(Text.getDBpath(absPath));
-                ois = new ObjectInputStream(fin);
-                Text txt = (Text) ois.readObject();
-                ois.close();
+                Text txt = TextCodec.read(Text.getDBpath(absPath));
 
                 textList.add(txt);
 
@@ -188,36 +110,19 @@ public class Database {
         } catch (Exception e) {
             System.out.println(e);
             System.exit(0);
-        } finally {
-
-            try {
-                if (fin != null) {
-                    fin.close();
-                }
-                if (ois != null) {
-                    ois.close();
-                }
-            } catch (Exception e) {
-                System.out.println(e);
-                System.exit(0);
-            }
         }
     }
 
-    private static Text repairDatabaseFile(int minNumLines,
+    // only repair one file at a time, two threads may hit the same broken file
+    private static synchronized Text repairDatabaseFile(int minNumLines,
             boolean debug, String absPath, String dir_name) {
 
         ArrayList<String> errorList = new ArrayList<String>();
         int counter = 0;
         Text txt;
-        FileInputStream fin = null;
-        ObjectInputStream ois = null;
         try {
             // Load serialized file
-            fin = new FileInputStream(Text.getDBpath(absPath));
-            ois = new ObjectInputStream(fin);
-            txt = (Text) ois.readObject();
-            ois.close();
+            txt = TextCodec.read(Text.getDBpath(absPath));
         } catch (Exception e) {
 
             System.out.println("Trying to recover file: " + absPath);
@@ -227,28 +132,51 @@ public class Database {
             // Serialize file and write to file
             serializeToFile(Text.getDBpath(absPath), txt);
             System.out.println("Recovery successful");
-        } finally {
-            try {
-                if (fin != null) {
-                    fin.close();
-                }
-                if (ois != null) {
-                    ois.close();
-                }
-            } catch (Exception e) {
-                System.out.println(e);
-                System.exit(0);
-            }
         }
         return txt;
     }
 
     public static ArrayList<String> constructCache(int minNumLines,
             boolean debug, List<String> fileList, String dir_name) {
+        return constructCache(minNumLines, debug, fileList, dir_name, new ArrayList<TextIndex>());
+    }
+
+    // also fills the given database indexes
+    public static ArrayList<String> constructCache(int minNumLines,
+            boolean debug, List<String> fileList, String dir_name, List<TextIndex> indexList) {
+        return constructCache(minNumLines, debug, fileList, dir_name, indexList, null);
+    }
+
+    /*
+     * Only tokenizes the files marked in rebuild, all of them if it is null.
+     * The .db files of the others are kept and only loaded if there are
+     * indexes to fill.
+     */
+    public static ArrayList<String> constructCache(int minNumLines,
+            boolean debug, List<String> fileList, String dir_name, List<TextIndex> indexList,
+            boolean[] rebuild) {
 
         ArrayList<String> errorList = new ArrayList<String>();
 
-        System.out.println("\nTokenizing a total of " + fileList.size() + " files");
+        if (rebuild == null) {
+            System.out.println("\nTokenizing a total of " + fileList.size() + " files");
+        } else {
+            int numRebuild = 0;
+            for (boolean b : rebuild) {
+                if (b) {
+                    numRebuild++;
+                }
+            }
+            System.out.println("\nTokenizing " + numRebuild + " new or changed files of " +
+                    fileList.size() + " files");
+        }
+        if (numThreads > 1) {
+            return constructCacheParallel(minNumLines, debug, fileList, dir_name, indexList, rebuild);
+        }
+        if (parseBatchSize > 1 && !Text.useLexer) {
+            return constructCacheBatched(minNumLines, debug, fileList, dir_name, indexList, rebuild);
+        }
+
         int counter = 1;
         for (String absPath : fileList) {
             // debug message
@@ -259,17 +187,178 @@ public class Database {
                 System.out.print(counter + "\r");
             }
 
+            Text txt = buildFile(minNumLines, debug, absPath, dir_name,
+                    rebuild == null || rebuild[counter - 1], indexList.size() > 0, errorList);
+            if (txt != null) {
+                for (TextIndex index : indexList) {
+                    index.addText(counter - 1, txt);
+                }
+            }
+
+            counter++;
+        }
+
+        return errorList;
+    }
+
+    /*
+     * Tokenize and store one file, or load its kept .db file if the text
+     * is needed. Returns null if the text is not needed.
+     */
+    private static Text buildFile(int minNumLines, boolean debug, String absPath, String dir_name,
+            boolean tokenize, boolean needText, ArrayList<String> errorList) {
+        if (tokenize) {
             Text txt = new Text(absPath, dir_name);
-            errorList = txt.tokenize(minNumLines, debug, errorList, dir_name);
+            txt.tokenize(minNumLines, debug, errorList, dir_name);
 
             // Serialize file and write to file
             serializeToFile(Text.getDBpath(absPath), txt);
+            return txt;
+        } else if (needText) {
+            return loadSingleFile(absPath, dir_name, minNumLines, debug);
+        }
+        return null;
+    }
 
-            counter++;
+    static class BuildResult {
+        Text txt;
+        ArrayList<String> errorList = new ArrayList<String>();
+    }
+
+    /*
+     * Same as buildFile for the files from..to of fileList, the files to
+     * tokenize are parsed as one batch. One result per file, in order.
+     */
+    private static BuildResult[] buildBatch(int minNumLines, boolean debug, List<String> fileList,
+            int from, int to, String dir_name, boolean[] rebuild, boolean needText) {
+        ArrayList<String> parseList = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            if (rebuild == null || rebuild[i]) {
+                parseList.add(fileList.get(i));
+            }
+        }
+        Tokenizer[] tokens = Parser.parseAST2Tokens(parseList, minNumLines, debug);
+
+        BuildResult[] results = new BuildResult[to - from];
+        int next = 0;
+        for (int i = from; i < to; i++) {
+            String absPath = fileList.get(i);
+            BuildResult result = new BuildResult();
+            if (rebuild == null || rebuild[i]) {
+                Text txt = new Text(absPath, dir_name);
+                txt.tokenize(tokens[next], minNumLines, result.errorList, dir_name);
+                tokens[next] = null;
+                next++;
+
+                // Serialize file and write to file
+                serializeToFile(Text.getDBpath(absPath), txt);
+                result.txt = txt;
+            } else if (needText) {
+                result.txt = loadSingleFile(absPath, dir_name, minNumLines, debug);
+            }
+            results[i - from] = result;
         }
+        return results;
+    }
+
+    // the sequential loop in batches of parseBatchSize files
+    private static ArrayList<String> constructCacheBatched(int minNumLines,
+            boolean debug, List<String> fileList, String dir_name, List<TextIndex> indexList,
+            boolean[] rebuild) {
 
+        ArrayList<String> errorList = new ArrayList<String>();
+        for (int from = 0; from < fileList.size(); from = from + parseBatchSize) {
+            int to = Math.min(from + parseBatchSize, fileList.size());
+            BuildResult[] results = buildBatch(minNumLines, debug, fileList, from, to, dir_name,
+                    rebuild, indexList.size() > 0);
+            for (int i = from; i < to; i++) {
+                BuildResult result = results[i - from];
+                errorList.addAll(result.errorList);
+                if (result.txt != null) {
+                    for (TextIndex index : indexList) {
+                        index.addText(i, result.txt);
+                    }
+                }
+            }
+            if (debug == false) {
+                System.out.print(to + "\r");
+            }
+        }
         return errorList;
     }
 
+    /*
+     * Same as the sequential loop on a pool of numThreads threads. The
+     * results are taken in file order, so the indexes are filled and the
+     * errors listed in the same order, with a bounded number of files in
+     * flight. With parseBatchSize every task is a batch of files.
+     */
+    private static ArrayList<String> constructCacheParallel(final int minNumLines,
+            final boolean debug, final List<String> fileList, final String dir_name, List<TextIndex> indexList,
+            final boolean[] rebuild) {
+
+        ArrayList<String> errorList = new ArrayList<String>();
+        final boolean needText = indexList.size() > 0;
+        // the lexer has no setup to share between files
+        final int batchSize = Text.useLexer ? 1 : Math.max(parseBatchSize, 1);
+        int maxPending = Math.max(FILES_PER_THREAD * numThreads / batchSize, numThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<BuildResult[]>> pending = new ArrayDeque<Future<BuildResult[]>>();
+        int next = 0;
+        try {
+            for (int i = 0; i < fileList.size(); i = i + batchSize) {
+                while (next < fileList.size() && pending.size() < maxPending) {
+                    final int from = next;
+                    final int to = Math.min(next + batchSize, fileList.size());
+                    pending.add(pool.submit(new Callable<BuildResult[]>() {
+                        public BuildResult[] call() {
+                            if (batchSize > 1) {
+                                return buildBatch(minNumLines, debug, fileList, from, to, dir_name,
+                                        rebuild, needText);
+                            }
+                            BuildResult result = new BuildResult();
+                            result.txt = buildFile(minNumLines, debug, fileList.get(from), dir_name,
+                                    rebuild == null || rebuild[from], needText, result.errorList);
+                            return new BuildResult[] {result};
+                        }
+                    }));
+                    next = to;
+                }
+
+                BuildResult[] results = pending.poll().get();
+                for (int j = 0; j < results.length; j++) {
+                    BuildResult result = results[j];
+                    errorList.addAll(result.errorList);
+                    if (result.txt != null) {
+                        for (TextIndex index : indexList) {
+                            index.addText(i + j, result.txt);
+                        }
+                    }
+                }
+                if (debug == false) {
+                    System.out.print((i + results.length) + "\r");
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while building the database\n" + e);
+            System.exit(0);
+        } catch (ExecutionException e) {
+            System.out.println("Error while building the database\n" + e.getCause());
+            System.exit(0);
+        } finally {
+            pool.shutdown();
+        }
+
+        return errorList;
+    }
 
+    // remove the .db files of the given source files
+    public static void removeCache(Collection<String> fileList) {
+        for (String absPath : fileList) {
+            File f = new File(Text.getDBpath(absPath));
+            if (f.exists() && !f.delete()) {
+                System.out.println("Cannot delete " + f.getPath());
+            }
+        }
+    }
 }
@@ -0,0 +1,175 @@
+import java.io.IOException;
+
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Parallel walk of a directory tree for .java files. Every directory is
+ * listed by its own task on a fork-join pool and every file found is
+ * handed to the listener right away, on the thread that found it, so
+ * the files can be processed while the walk goes on. Symbolic links are
+ * either not followed, like find without -L, or followed with every
+ * directory listed once, like the recursive listing of getFileList. An
+ * entry that cannot be read is reported and skipped on its own.
+ */
+public class FileWalker {
+
+    public interface Listener {
+        // called concurrently from the walker threads
+        void fileFound(FileEntry entry);
+    }
+
+    public static class FileEntry {
+        public final String path;
+        public final long size;
+        public final long modifiedTime;
+
+        FileEntry(String pathIn, long sizeIn, long modifiedTimeIn) {
+            path = pathIn;
+            size = sizeIn;
+            modifiedTime = modifiedTimeIn;
+        }
+    }
+
+    boolean skipHidden;
+
+    boolean followLinks;
+
+    Listener listener;
+
+    // the real paths of the directories listed so far, when links are followed
+    Set<Path> visited = ConcurrentHashMap.newKeySet();
+
+    ConcurrentLinkedQueue<FileEntry> entryQueue = new ConcurrentLinkedQueue<FileEntry>();
+
+    private FileWalker(boolean skipHiddenIn, boolean followLinksIn, Listener listenerIn) {
+        skipHidden = skipHiddenIn;
+        followLinks = followLinksIn;
+        listener = listenerIn;
+    }
+
+    /*
+     * All the .java files under dirName, sorted by path. With skipHidden,
+     * names starting with a dot below dirName are left out together with
+     * everything under them. The listener may be null.
+     */
+    public static List<FileEntry> walk(String dirName, boolean skipHidden, boolean followLinks,
+            int numThreads, Listener listener) {
+        FileWalker walker = new FileWalker(skipHidden, followLinks, listener);
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            pool.invoke(walker.new DirectoryTask(Paths.get(dirName)));
+        } finally {
+            pool.shutdown();
+        }
+
+        ArrayList<FileEntry> entryList = new ArrayList<FileEntry>(walker.entryQueue);
+        Collections.sort(entryList, new Comparator<FileEntry>() {
+            public int compare(FileEntry e1, FileEntry e2) {
+                return e1.path.compareTo(e2.path);
+            }
+        });
+        return entryList;
+    }
+
+    public static List<String> walkPaths(String dirName, boolean skipHidden, boolean followLinks,
+            int numThreads) {
+        List<String> pathList = new ArrayList<String>();
+        for (FileEntry entry : walk(dirName, skipHidden, followLinks, numThreads, null)) {
+            pathList.add(entry.path);
+        }
+        return pathList;
+    }
+
+    class DirectoryTask extends RecursiveAction {
+
+        Path dir;
+
+        DirectoryTask(Path dirIn) {
+            dir = dirIn;
+        }
+
+        protected void compute() {
+            ArrayList<DirectoryTask> taskList = new ArrayList<DirectoryTask>();
+            if (followLinks && !firstVisit(dir)) {
+                return;
+            }
+            DirectoryStream<Path> stream = null;
+            try {
+                stream = Files.newDirectoryStream(dir);
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    if (skipHidden && name.startsWith(".")) {
+                        continue;
+                    }
+
+                    BasicFileAttributes attributes;
+                    try {
+                        if (followLinks) {
+                            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        } else {
+                            attributes = Files.readAttributes(path,
+                                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Error while reading " + path + "\n" + e);
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        DirectoryTask task = new DirectoryTask(path);
+                        task.fork();
+                        taskList.add(task);
+                    } else if (attributes.isRegularFile() && name.endsWith(".java")) {
+                        FileEntry entry = new FileEntry(path.toString(), attributes.size(),
+                                attributes.lastModifiedTime().toMillis());
+                        entryQueue.add(entry);
+                        if (listener != null) {
+                            listener.fileFound(entry);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error while listing " + dir + "\n" + e);
+            } catch (DirectoryIteratorException e) {
+                System.out.println("Error while listing " + dir + "\n" + e.getCause());
+            } finally {
+                try {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error while closing stream\n" + e);
+                }
+            }
+
+            for (DirectoryTask task : taskList) {
+                task.join();
+            }
+        }
+
+        // false if the directory was reached before through another link
+        private boolean firstVisit(Path path) {
+            try {
+                return visited.add(path.toRealPath());
+            } catch (IOException e) {
+                System.out.println("Error while reading " + path + "\n" + e);
+                return false;
+            }
+        }
+    }
+}
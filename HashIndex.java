@@ -0,0 +1,247 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Inverted index of the database: statement hash -> list of
+ * (file, method, statement) positions, used to find the database
+ * methods that can possibly match a given project method. The saved
+ * index is only used for the .db files it was built from, as recorded
+ * by the built digests of the manifest.
+ */
+public class HashIndex implements TextIndex {
+
+    private static final int MAGIC = 0x48494458;   // "HIDX"
+    private static final int VERSION = 2;
+
+    // the file list the file positions refer to
+    List<String> fileList;
+
+    // statement hash -> packed (file, method, statement) triples
+    HashMap<Integer, PostingList> postings = new HashMap<Integer, PostingList>();
+
+    static class PostingList {
+        int[] data = new int[6];
+        int size = 0;
+
+        void add(int file, int method, int statement) {
+            if (size + 3 > data.length) {
+                int[] newData = new int[data.length * 2];
+                System.arraycopy(data, 0, newData, 0, size);
+                data = newData;
+            }
+            data[size] = file;
+            data[size + 1] = method;
+            data[size + 2] = statement;
+            size = size + 3;
+        }
+    }
+
+    public HashIndex(List<String> fileListIn) {
+        fileList = fileListIn;
+    }
+
+    // add all the statements of the file at position fileIndex
+    public void addText(int fileIndex, Text txt) {
+        for (int m = 0; m < txt.getNumMethods(); m++) {
+            ArrayList<Statement> statements = txt.getRawStatements(m);
+            for (int s = 0; s < statements.size(); s++) {
+                int hash = statements.get(s).hashNumber;
+                PostingList list = postings.get(hash);
+                if (list == null) {
+                    list = new PostingList();
+                    postings.put(hash, list);
+                }
+                list.add(fileIndex, m, s);
+            }
+        }
+    }
+
+    public int getNumFiles() {
+        return fileList.size();
+    }
+
+    // pack a (project file, project method, database method) triple
+    public static long packCandidate(int projectFile, int projectMethod, int dbMethod) {
+        return ((long) projectFile << 42) | ((long) projectMethod << 21) | (long) dbMethod;
+    }
+
+    /*
+     * Find the database methods sharing enough statements with the given
+     * project method to reach minNumLines, and record them per database file.
+     * Both exact and gapped matches need at least minNumLines statements of
+     * the project method to have an equal statement on the other side.
+     */
+    public void addCandidates(ArrayList<Statement> statements, int minNumLines,
+            int projectFile, int projectMethod, HashMap<Integer, HashSet<Long>> candidateMap) {
+
+        // number of statements for each distinct hash
+        HashMap<Integer, Integer> multiplicity = new HashMap<Integer, Integer>();
+        for (Statement s : statements) {
+            Integer count = multiplicity.get(s.hashNumber);
+            if (count == null) {
+                multiplicity.put(s.hashNumber, 1);
+            } else {
+                multiplicity.put(s.hashNumber, count + 1);
+            }
+        }
+
+        // database method (file << 32 | method) -> number of shared statements
+        HashMap<Long, Integer> sharedCount = new HashMap<Long, Integer>();
+        for (Map.Entry<Integer, Integer> entry : multiplicity.entrySet()) {
+            PostingList list = postings.get(entry.getKey());
+            if (list == null) {
+                continue;
+            }
+
+            // postings of the same method are adjacent, count them once
+            int lastFile = -1;
+            int lastMethod = -1;
+            for (int p = 0; p < list.size; p = p + 3) {
+                int file = list.data[p];
+                int method = list.data[p + 1];
+                if (file == lastFile && method == lastMethod) {
+                    continue;
+                }
+                lastFile = file;
+                lastMethod = method;
+
+                long key = ((long) file << 32) | method;
+                Integer count = sharedCount.get(key);
+                if (count == null) {
+                    sharedCount.put(key, entry.getValue());
+                } else {
+                    sharedCount.put(key, count + entry.getValue());
+                }
+            }
+        }
+
+        for (Map.Entry<Long, Integer> entry : sharedCount.entrySet()) {
+            if (entry.getValue() < minNumLines) {
+                continue;
+            }
+            int file = (int) (entry.getKey() >>> 32);
+            int method = (int) (entry.getKey() & 0xffffffffL);
+
+            HashSet<Long> candidates = candidateMap.get(file);
+            if (candidates == null) {
+                candidates = new HashSet<Long>();
+                candidateMap.put(file, candidates);
+            }
+            candidates.add(packCandidate(projectFile, projectMethod, method));
+        }
+    }
+
+    public void save(String filePath, Manifest manifest) {
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(CorpusStore.getListDigest(manifest));
+
+            dos.writeInt(fileList.size());
+            for (String path : fileList) {
+                dos.writeUTF(path);
+            }
+
+            dos.writeInt(postings.size());
+            for (Map.Entry<Integer, PostingList> entry : postings.entrySet()) {
+                PostingList list = entry.getValue();
+                dos.writeInt(entry.getKey());
+                dos.writeInt(list.size);
+                for (int i = 0; i < list.size; i++) {
+                    dos.writeInt(list.data[i]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error while writing hash index\n" + e);
+            System.exit(0);
+        } finally {
+            try {
+                if (dos != null) {
+                    dos.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+
+    // returns null if there is no index for this exact file list and .db files
+    public static HashIndex load(String filePath, Manifest manifest) {
+        List<String> fileList = manifest.getFileList();
+        File f = new File(filePath);
+        if (!f.exists() || f.isDirectory()) {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION ||
+                    dis.readLong() != CorpusStore.getListDigest(manifest)) {
+                return null;
+            }
+
+            int numFiles = dis.readInt();
+            if (numFiles != fileList.size()) {
+                return null;
+            }
+            for (int i = 0; i < numFiles; i++) {
+                if (!dis.readUTF().equals(fileList.get(i))) {
+                    return null;
+                }
+            }
+
+            HashIndex index = new HashIndex(fileList);
+            int numHashes = dis.readInt();
+            for (int i = 0; i < numHashes; i++) {
+                int hash = dis.readInt();
+                PostingList list = new PostingList();
+                list.size = dis.readInt();
+                list.data = new int[list.size];
+                for (int j = 0; j < list.size; j++) {
+                    list.data[j] = dis.readInt();
+                }
+                index.postings.put(hash, list);
+            }
+            return index;
+        } catch (IOException e) {
+            System.out.println("Error while loading hash index\n" + e);
+            return null;
+        } finally {
+            try {
+                if (dis != null) {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+
+    // rebuild the index from the cached .db files
+    public static HashIndex build(List<String> fileList, String databaseDir, int minNumLines) {
+        System.out.println("\nBuilding statement hash index for " + fileList.size() + " files");
+        HashIndex index = new HashIndex(fileList);
+        for (int i = 0; i < fileList.size(); i++) {
+            Text txt = Database.loadSingleFile(fileList.get(i), databaseDir, minNumLines, false);
+            index.addText(i, txt);
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+        return index;
+    }
+}
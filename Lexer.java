@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+ * A hand written scanner for Java source. It splits a file into
+ * identifiers, keywords, literals and operators with their line numbers,
+ * and keeps the comments the way the CommentVisitor records them.
+ * Nothing is resolved, the statements are found by LexerParser.
+ */
+public class Lexer {
+
+    public static final int IDENTIFIER = 0;
+    public static final int KEYWORD = 1;
+    public static final int NUMBER = 2;
+    public static final int STRING = 3;
+    public static final int CHARACTER = 4;
+    // operators and separators
+    public static final int OPERATOR = 5;
+
+    private static final HashSet<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char",
+            "class", "const", "continue", "default", "do", "double", "else", "enum",
+            "extends", "final", "finally", "float", "for", "goto", "if", "implements",
+            "import", "instanceof", "int", "interface", "long", "native", "new", "package",
+            "private", "protected", "public", "return", "short", "static", "strictfp",
+            "super", "switch", "synchronized", "this", "throw", "throws", "transient",
+            "try", "void", "volatile", "while", "true", "false", "null"));
+
+    // longest first, so that the first match is the whole operator
+    private static final String[] OPERATORS = {
+        ">>>=", "<<=", ">>=", ">>>", "...", "->", "::", "++", "--", "&&", "||",
+        "==", "!=", "<=", ">=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=",
+        "<<", ">>"
+    };
+
+    private char[] content;
+    private int pos = 0;
+    private int line = 1;
+
+    // the tokens, one entry per token in each array
+    int numTokens = 0;
+    int[] kinds = new int[256];
+    String[] texts = new String[256];
+    int[] lines = new int[256];
+    // the first line of the last javadoc before the token, 0 if there is none
+    int[] docLines = new int[256];
+    private int pendingDoc = 0;
+
+    // every comment of the file, in source order
+    ArrayList<CommentMap> commentList = new ArrayList<CommentMap>();
+
+    public Lexer(char[] content) {
+        this.content = content;
+    }
+
+    public static boolean isKeyword(String text) {
+        return KEYWORDS.contains(text);
+    }
+
+    public void scan() {
+        while (pos < content.length) {
+            char c = content[pos];
+            if (c == '\n' || c == '\r') {
+                newLine();
+            } else if (Character.isWhitespace(c)) {
+                pos++;
+            } else if (c == '/' && peek(1) == '/') {
+                lineComment();
+            } else if (c == '/' && peek(1) == '*') {
+                blockComment();
+            } else if (Character.isJavaIdentifierStart(c)) {
+                identifier();
+            } else if (Character.isDigit(c) || (c == '.' && Character.isDigit(peek(1)))) {
+                number();
+            } else if (c == '"') {
+                string();
+            } else if (c == '\'') {
+                character();
+            } else {
+                operator();
+            }
+        }
+    }
+
+    private char peek(int offset) {
+        if (pos + offset < content.length) {
+            return content[pos + offset];
+        }
+        return 0;
+    }
+
+    // \r\n counts as one line end, as in the CompilationUnit
+    private void newLine() {
+        if (content[pos] == '\r' && peek(1) == '\n') {
+            pos++;
+        }
+        pos++;
+        line++;
+    }
+
+    private void add(int kind, String text, int tokenLine) {
+        if (numTokens == kinds.length) {
+            kinds = Arrays.copyOf(kinds, numTokens * 2);
+            texts = Arrays.copyOf(texts, numTokens * 2);
+            lines = Arrays.copyOf(lines, numTokens * 2);
+            docLines = Arrays.copyOf(docLines, numTokens * 2);
+        }
+        kinds[numTokens] = kind;
+        texts[numTokens] = text;
+        lines[numTokens] = tokenLine;
+        docLines[numTokens] = pendingDoc;
+        pendingDoc = 0;
+        numTokens++;
+    }
+
+    private void lineComment() {
+        int start = pos;
+        while (pos < content.length && content[pos] != '\n' && content[pos] != '\r') {
+            pos++;
+        }
+        String comment = new String(content, start, pos - start);
+        CommentMap cMap = new CommentMap(comment, line, line, 1);
+        cMap.standalone = CommentParser.isStandalone(content, start, comment);
+        commentList.add(cMap);
+    }
+
+    private void blockComment() {
+        int start = pos;
+        int startLine = line;
+        pos = pos + 2;
+        while (pos < content.length && !(content[pos] == '*' && peek(1) == '/')) {
+            if (content[pos] == '\n' || content[pos] == '\r') {
+                newLine();
+            } else {
+                pos++;
+            }
+        }
+        pos = Math.min(pos + 2, content.length);
+
+        String comment = new String(content, start, pos - start);
+        // /**/ is an empty block comment, not a javadoc
+        int commentType = (comment.startsWith("/**") && comment.length() > 4) ? 0 : 2;
+        commentList.add(new CommentMap(comment.replaceAll("\\n\\s+", "\n "), startLine, line, commentType));
+        // other comments between a javadoc and its declaration do not detach it
+        if (commentType == 0) {
+            pendingDoc = startLine;
+        }
+    }
+
+    private void identifier() {
+        int start = pos;
+        while (pos < content.length && Character.isJavaIdentifierPart(content[pos])) {
+            pos++;
+        }
+        String text = new String(content, start, pos - start);
+        add(isKeyword(text) ? KEYWORD : IDENTIFIER, text, line);
+    }
+
+    private void number() {
+        int start = pos;
+        boolean hex = content[pos] == '0' && (peek(1) == 'x' || peek(1) == 'X');
+        while (pos < content.length) {
+            char c = content[pos];
+            if (Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+                pos++;
+            } else if ((c == '+' || c == '-') && exponent(content[pos - 1], hex)) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        add(NUMBER, new String(content, start, pos - start), line);
+    }
+
+    private static boolean exponent(char c, boolean hex) {
+        if (hex) {
+            return c == 'p' || c == 'P';
+        }
+        return c == 'e' || c == 'E';
+    }
+
+    // the literal with its quotes, as the escaped value of the literal node
+    private void string() {
+        int start = pos;
+        pos++;
+        while (pos < content.length && content[pos] != '"') {
+            if (content[pos] == '\n' || content[pos] == '\r') {
+                // unterminated, stop at the end of the line
+                break;
+            }
+            if (content[pos] == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        if (pos < content.length && content[pos] == '"') {
+            pos++;
+        }
+        add(STRING, new String(content, start, Math.min(pos, content.length) - start), line);
+    }
+
+    private void character() {
+        int start = pos;
+        pos++;
+        while (pos < content.length && content[pos] != '\'') {
+            if (content[pos] == '\n' || content[pos] == '\r') {
+                break;
+            }
+            if (content[pos] == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        if (pos < content.length && content[pos] == '\'') {
+            pos++;
+        }
+        add(CHARACTER, new String(content, start, Math.min(pos, content.length) - start), line);
+    }
+
+    private void operator() {
+        for (String operator : OPERATORS) {
+            if (matches(operator)) {
+                add(OPERATOR, operator, line);
+                pos = pos + operator.length();
+                return;
+            }
+        }
+        add(OPERATOR, String.valueOf(content[pos]), line);
+        pos++;
+    }
+
+    private boolean matches(String operator) {
+        if (pos + operator.length() > content.length) {
+            return false;
+        }
+        for (int i = 0; i < operator.length(); i++) {
+            if (content[pos + i] != operator.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ * Tokenizes the files of a database directory with the JDT Parser and
+ * with the LexerParser and reports how far the two agree: the methods
+ * and statements found at the same lines, their names, scopes and
+ * method invocations, the comments, and whether statements with equal
+ * hashes under one tokenizer have equal hashes under the other. Both
+ * are timed after one untimed pass over the files. Nothing is written.
+ *
+ * usage: java LexerAgreement <database dir> [min lines]
+ */
+public class LexerAgreement {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: java LexerAgreement <database dir> [min lines]");
+            System.exit(0);
+        }
+        String databaseDir = args[0];
+        int minNumLines = 3;
+        if (args.length > 1) {
+            minNumLines = Integer.parseInt(args[1]);
+        }
+
+        List<String> fileList = Database.getFileList(databaseDir);
+        System.out.println("Tokenizing " + fileList.size() + " files in " + databaseDir);
+
+        // untimed, so that neither tokenizer pays for the warm-up
+        for (String absPath : fileList) {
+            Parser.parseAST2Tokens(absPath, minNumLines, false);
+            LexerParser.parseLexer2Tokens(absPath, minNumLines, false);
+        }
+
+        long start = System.nanoTime();
+        ArrayList<Tokenizer> jdtTokens = new ArrayList<Tokenizer>();
+        for (String absPath : fileList) {
+            jdtTokens.add(Parser.parseAST2Tokens(absPath, minNumLines, false));
+        }
+        long jdtTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ArrayList<Tokenizer> lexerTokens = new ArrayList<Tokenizer>();
+        for (String absPath : fileList) {
+            lexerTokens.add(LexerParser.parseLexer2Tokens(absPath, minNumLines, false));
+        }
+        long lexerTime = System.nanoTime() - start;
+
+        Agreement agreement = new Agreement();
+        for (int i = 0; i < fileList.size(); i++) {
+            if (jdtTokens.get(i) == null || lexerTokens.get(i) == null) {
+                System.out.println("Not tokenized by both: " + fileList.get(i));
+                continue;
+            }
+            agreement.compare(jdtTokens.get(i), lexerTokens.get(i));
+        }
+
+        System.out.format("%-10s %10s%n", "tokenizer", "ms");
+        System.out.format("%-10s %10d%n", "jdt", jdtTime / 1000000);
+        System.out.format("%-10s %10d%n", "lexer", lexerTime / 1000000);
+        agreement.print();
+    }
+
+    static class Agreement {
+        int jdtMethods, lexerMethods, sameMethods;
+        int jdtStatements, lexerStatements, sameStatements;
+        int sameScope, sameInvocation;
+        double nameSimilarity;
+        int jdtComments, lexerComments, sameComments;
+
+        // statements at the same lines, counted by hash, by hash and by both
+        HashMap<Long, Integer> jdtHashes = new HashMap<Long, Integer>();
+        HashMap<Long, Integer> lexerHashes = new HashMap<Long, Integer>();
+        HashMap<String, Integer> hashPairs = new HashMap<String, Integer>();
+
+        void compare(Tokenizer jdt, Tokenizer lexer) {
+            ArrayList<Method> jdtMethodList = jdt.getTokenizedMethods();
+            ArrayList<Method> lexerMethodList = lexer.getTokenizedMethods();
+            jdtMethods += jdtMethodList.size();
+            lexerMethods += lexerMethodList.size();
+
+            HashMap<String, Method> lexerByLines = new HashMap<String, Method>();
+            for (Method method : lexerMethodList) {
+                lexerByLines.put(method.getStart() + ":" + method.getEnd(), method);
+            }
+            for (Method method : jdtMethodList) {
+                Method other = lexerByLines.get(method.getStart() + ":" + method.getEnd());
+                if (other != null) {
+                    sameMethods++;
+                    compareStatements(method.getMethodStatements(), other.getMethodStatements());
+                }
+            }
+
+            jdtComments += jdt.getComments().size();
+            lexerComments += lexer.getComments().size();
+            HashSet<String> lexerCommentSet = new HashSet<String>();
+            for (CommentMap comment : lexer.getComments()) {
+                lexerCommentSet.add(commentKey(comment));
+            }
+            for (CommentMap comment : jdt.getComments()) {
+                if (lexerCommentSet.contains(commentKey(comment))) {
+                    sameComments++;
+                }
+            }
+        }
+
+        private static String commentKey(CommentMap comment) {
+            return comment.startLine + ":" + comment.endLine + ":" + comment.commentType + ":"
+                + comment.standalone + ":" + comment.comment;
+        }
+
+        private void compareStatements(ArrayList<Statement> jdt, ArrayList<Statement> lexer) {
+            jdtStatements += jdt.size();
+            lexerStatements += lexer.size();
+
+            // an else and the statement after it share their lines, they are paired in order
+            HashMap<String, ArrayDeque<Statement>> lexerByLines = new HashMap<String, ArrayDeque<Statement>>();
+            for (Statement statement : lexer) {
+                String lines = statement.startLine + ":" + statement.endLine;
+                ArrayDeque<Statement> sameLines = lexerByLines.get(lines);
+                if (sameLines == null) {
+                    sameLines = new ArrayDeque<Statement>();
+                    lexerByLines.put(lines, sameLines);
+                }
+                sameLines.add(statement);
+            }
+            for (Statement statement : jdt) {
+                ArrayDeque<Statement> sameLines = lexerByLines.get(statement.startLine + ":" + statement.endLine);
+                if (sameLines == null || sameLines.isEmpty()) {
+                    continue;
+                }
+                Statement other = sameLines.poll();
+                sameStatements++;
+                if (statement.scopeLevel == other.scopeLevel) {
+                    sameScope++;
+                }
+                if (statement.hasMethodInvocation() == other.hasMethodInvocation()) {
+                    sameInvocation++;
+                }
+                nameSimilarity += jaccard(statement.getNameList(), other.getNameList());
+
+                increment(jdtHashes, statement.longHash);
+                increment(lexerHashes, other.longHash);
+                String pair = statement.longHash + ":" + other.longHash;
+                Integer count = hashPairs.get(pair);
+                hashPairs.put(pair, (count == null) ? 1 : count + 1);
+            }
+        }
+
+        private static void increment(HashMap<Long, Integer> counts, long key) {
+            Integer count = counts.get(key);
+            counts.put(key, (count == null) ? 1 : count + 1);
+        }
+
+        private static double jaccard(HashSet<String> a, HashSet<String> b) {
+            if (a.isEmpty() && b.isEmpty()) {
+                return 1.0;
+            }
+            int common = 0;
+            for (String name : a) {
+                if (b.contains(name)) {
+                    common++;
+                }
+            }
+            return (double) common / (a.size() + b.size() - common);
+        }
+
+        // statement pairs with equal hashes
+        private static long equalPairs(Iterable<Integer> counts) {
+            long pairs = 0;
+            for (int count : counts) {
+                pairs += (long) count * (count - 1) / 2;
+            }
+            return pairs;
+        }
+
+        private static double ratio(double part, double whole) {
+            return (whole == 0) ? 0 : 100.0 * part / whole;
+        }
+
+        void print() {
+            System.out.format("%-32s %10s %10s %10s%n", "", "jdt", "lexer", "same");
+            System.out.format("%-32s %10d %10d %10d%n", "methods (start and end line)",
+                    jdtMethods, lexerMethods, sameMethods);
+            System.out.format("%-32s %10d %10d %10d%n", "statements of the same methods",
+                    jdtStatements, lexerStatements, sameStatements);
+            System.out.format("%-32s %10d %10d %10d%n", "comments",
+                    jdtComments, lexerComments, sameComments);
+
+            System.out.format("%nOf the statements at the same lines:%n");
+            System.out.format("%-32s %9.1f%%%n", "same scope level", ratio(sameScope, sameStatements));
+            System.out.format("%-32s %9.1f%%%n", "same method invocation",
+                    ratio(sameInvocation, sameStatements));
+            System.out.format("%-32s %10.3f%n", "mean Jaccard of the names",
+                    (sameStatements == 0) ? 0 : nameSimilarity / sameStatements);
+
+            long jdtPairs = equalPairs(jdtHashes.values());
+            long lexerPairs = equalPairs(lexerHashes.values());
+            long bothPairs = equalPairs(hashPairs.values());
+            System.out.format("%-32s %10d%n", "equal hash pairs, jdt", jdtPairs);
+            System.out.format("%-32s %10d%n", "equal hash pairs, lexer", lexerPairs);
+            System.out.format("%-32s %10d%n", "equal hash pairs, both", bothPairs);
+            System.out.format("%-32s %9.1f%%%n", "lexer pairs also equal in jdt", ratio(bothPairs, lexerPairs));
+            System.out.format("%-32s %9.1f%%%n", "jdt pairs also equal in lexer", ratio(bothPairs, jdtPairs));
+        }
+    }
+}
@@ -0,0 +1,888 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.nio.file.Paths;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+
+/*
+ * Finds the methods and statements of a file in the tokens of the Lexer,
+ * without building a syntax tree or loading JDT. The Tokenizer is driven
+ * with the same calls, in the same places, as the visitor of the Parser,
+ * so the methods come out with the same statements, lines and names. The
+ * statement hashes are built from the source tokens rather than the node
+ * types, they do not match the hashes of the Parser.
+ */
+class LexerParser {
+
+    private static final HashSet<String> MODIFIERS = new HashSet<String>(Arrays.asList(
+            "public", "protected", "private", "static", "final", "abstract", "native",
+            "synchronized", "transient", "volatile", "strictfp", "default"));
+
+    private static final HashSet<String> PRIMITIVES = new HashSet<String>(Arrays.asList(
+            "boolean", "byte", "char", "short", "int", "long", "float", "double", "void"));
+
+    private static final HashSet<String> ASSIGNMENTS = new HashSet<String>(Arrays.asList(
+            "=", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=", ">>>="));
+
+    // the tokens of the file
+    private int n;
+    private int[] kinds;
+    private String[] texts;
+    private int[] lines;
+    private int[] docLines;
+
+    // the index of the matching bracket, -1 if there is none
+    private int[] match;
+
+    // the braces that open the body of an anonymous class
+    private boolean[] anonymousBody;
+
+    // the parentheses of the arguments of a class instance creation
+    private boolean[] creationArguments;
+
+    private Tokenizer tk;
+
+    private ArrayList<Parser.TypeInfo> variableMap = new ArrayList<Parser.TypeInfo>();
+
+    private int scopeLevel = 0;
+
+    // where the class instance creations being emitted end, innermost last
+    private ArrayList<Integer> creationEnds = new ArrayList<Integer>();
+
+    public static Tokenizer parseLexer2Tokens(String absPath, int minNumLines, boolean debug) {
+        char[] content;
+        try {
+            byte[] encoded = Files.readAllBytes(Paths.get(absPath));
+            content = new String(encoded, StandardCharsets.UTF_8).toCharArray();
+        } catch (IOException e) {
+            System.out.println("\nError while reading " + absPath + "\n" + e);
+            return null;
+        }
+        try {
+            return new LexerParser().tokenize(content, minNumLines, debug);
+        } catch (Exception e) {
+            System.out.println("\nError while tokenizing " + absPath + " : " + e.toString());
+            return null;
+        }
+    }
+
+    private Tokenizer tokenize(char[] content, int minNumLines, boolean debug) {
+        Lexer lexer = new Lexer(content);
+        lexer.scan();
+
+        n = lexer.numTokens;
+        kinds = lexer.kinds;
+        texts = lexer.texts;
+        lines = lexer.lines;
+        docLines = lexer.docLines;
+        match = matchBrackets();
+        anonymousBody = new boolean[n];
+        creationArguments = new boolean[n];
+
+        tk = new Tokenizer(minNumLines, debug);
+        tk.setComments(lexer.commentList);
+
+        int i = 0;
+        while (i < n) {
+            if (is(i, "package") || is(i, "import")) {
+                i = simpleEnd(i, n) + 1;
+            } else {
+                i = member(i, n);
+            }
+        }
+        return tk;
+    }
+
+    private int[] matchBrackets() {
+        int[] matching = new int[n];
+        Arrays.fill(matching, -1);
+        int[] stack = new int[n];
+        int top = 0;
+        for (int i = 0; i < n; i++) {
+            if (kinds[i] != Lexer.OPERATOR) {
+                continue;
+            }
+            String t = texts[i];
+            if (t.equals("(") || t.equals("[") || t.equals("{")) {
+                stack[top++] = i;
+            } else if (t.equals(")") || t.equals("]") || t.equals("}")) {
+                // a stray closing bracket is left unmatched
+                if (top > 0 && opens(texts[stack[top - 1]], t)) {
+                    top--;
+                    matching[stack[top]] = i;
+                    matching[i] = stack[top];
+                }
+            }
+        }
+        return matching;
+    }
+
+    private static boolean opens(String open, String close) {
+        return (open.equals("(") && close.equals(")")) || (open.equals("[") && close.equals("]"))
+            || (open.equals("{") && close.equals("}"));
+    }
+
+    private boolean is(int i, String text) {
+        return i >= 0 && i < n && texts[i].equals(text);
+    }
+
+    // the closing bracket of i, or the last token before limit when it is missing
+    private int close(int i, int limit) {
+        int m = match[i];
+        if (m < i || m >= limit) {
+            return limit - 1;
+        }
+        return m;
+    }
+
+    private void clearLocalVariables() {
+        for (int i = variableMap.size() - 1; i >= 0; i--) {
+            if (variableMap.get(i).level == scopeLevel) {
+                variableMap.remove(i);
+            }
+        }
+    }
+
+    private void addHash(TokenType type, int i) {
+        tk.addHash(type.ordinal(), lines[i]);
+    }
+
+    private void addHash(TokenType type, String str, int i) {
+        tk.addHash(type.ordinal(), str, lines[i]);
+    }
+
+    private void statementStart(int i, int e) {
+        tk.statementStart(lines[i], lines[e]);
+    }
+
+    /* Declarations */
+
+    // a type, method, field or initializer starting at i, returns the index after it
+    private int member(int i, int limit) {
+        if (is(i, ";")) {
+            return i + 1;
+        }
+        boolean typeDeclaration = false;
+        boolean newScope = false;
+        boolean isEnum = false;
+        int j = i;
+        while (j < limit) {
+            if (is(j, "@") && is(j + 1, "interface")) {
+                typeDeclaration = true;
+                j = j + 2;
+            } else if (is(j, "@")) {
+                j = skipAnnotation(j, limit);
+            } else if (is(j, "class") || is(j, "interface") || is(j, "enum")) {
+                typeDeclaration = true;
+                // enums and annotation types do not open a scope in the Parser either
+                newScope = !is(j, "enum");
+                isEnum = is(j, "enum");
+                j++;
+            } else if (is(j, "{") || is(j, ";") || is(j, "=") || is(j, "(")) {
+                break;
+            } else {
+                j++;
+            }
+        }
+        if (j >= limit) {
+            emit(i, limit);
+            return limit;
+        }
+
+        if (typeDeclaration && is(j, "{")) {
+            emit(i, j);
+            if (newScope) {
+                scopeLevel = scopeLevel + 1;
+            }
+            typeBody(j, isEnum, limit);
+            if (newScope) {
+                clearLocalVariables();
+                scopeLevel = scopeLevel - 1;
+            }
+            return close(j, limit) + 1;
+        }
+        if (is(j, "(") && j > i && kinds[j - 1] == Lexer.IDENTIFIER) {
+            return method(i, j, limit);
+        }
+        if (is(j, "{")) {
+            // an initializer, its statements are outside of any method
+            emit(i, j);
+            return block(j, limit);
+        }
+
+        int e = simpleEnd(i, limit);
+        int nameIndex = declaration(i, e + 1);
+        if (nameIndex >= 0) {
+            declareFragments(skipModifiers(i, e), nameIndex, e);
+        }
+        emit(i, e);
+        return e + 1;
+    }
+
+    private void typeBody(int b, boolean isEnum, int limit) {
+        int e = close(b, limit);
+        int i = b + 1;
+        if (isEnum) {
+            i = enumConstants(i, e);
+        }
+        while (i < e) {
+            i = member(i, e);
+        }
+    }
+
+    // the constants up to the first semicolon of an enum body
+    private int enumConstants(int i, int e) {
+        while (i < e) {
+            if (is(i, ";")) {
+                return i + 1;
+            } else if (is(i, "{")) {
+                typeBody(i, false, e);
+                i = close(i, e) + 1;
+            } else if (is(i, "(")) {
+                emit(i, close(i, e) + 1);
+                i = close(i, e) + 1;
+            } else if (kinds[i] == Lexer.IDENTIFIER) {
+                simpleName(i);
+                i++;
+            } else {
+                emit(i, i + 1);
+                i++;
+            }
+        }
+        return e;
+    }
+
+    private int method(int i, int p, int limit) {
+        String name = texts[p - 1];
+        int q = close(p, limit);
+        int k = q + 1;
+        while (k < limit && !is(k, "{") && !is(k, ";")) {
+            k++;
+        }
+        int end = Math.min(k, limit - 1);
+        if (is(k, "{")) {
+            end = close(k, limit);
+        }
+
+        // the node of the Parser starts at the javadoc of the method
+        int startLine = (docLines[i] > 0) ? docLines[i] : lines[i];
+
+        tk.inMethod = true;
+        tk.methodStart(name, startLine);
+        tk.statementStart(startLine, lines[end]);
+        addHash(TokenType.MethodDeclaration, i);
+
+        emit(i, p - 1);
+        simpleName(p - 1);
+        parameters(p, q);
+        emit(q + 1, Math.min(k, limit));
+        if (is(k, "{") && k < limit) {
+            block(k, limit);
+        }
+
+        tk.inMethod = false;
+        tk.methodEnd(name, lines[end]);
+        return end + 1;
+    }
+
+    // the parameters between the parentheses p and q
+    private void parameters(int p, int q) {
+        int j = p + 1;
+        while (j < q) {
+            int s = j;
+            int angles = 0;
+            while (s < q && !(is(s, ",") && angles <= 0)) {
+                if (is(s, "<")) {
+                    angles++;
+                } else if (is(s, ">")) {
+                    angles--;
+                } else if (is(s, ">>")) {
+                    angles = angles - 2;
+                } else if (is(s, ">>>")) {
+                    angles = angles - 3;
+                } else if (is(s, "(") || is(s, "[") || is(s, "{")) {
+                    s = close(s, q);
+                }
+                s++;
+            }
+            parameter(j, s);
+            j = s + 1;
+        }
+    }
+
+    // a single variable declaration from j to s, the name is its last identifier
+    private void parameter(int j, int s) {
+        int nameIndex = s - 1;
+        while (nameIndex >= j && kinds[nameIndex] != Lexer.IDENTIFIER) {
+            nameIndex--;
+        }
+        if (nameIndex < j) {
+            emit(j, s);
+            return;
+        }
+        addHash(TokenType.SingleVariableDeclaration, j);
+        String type = typeText(skipModifiers(j, nameIndex), nameIndex);
+        variableMap.add(new Parser.TypeInfo(texts[nameIndex], scopeLevel, type));
+        emit(j, s);
+    }
+
+    private int skipAnnotation(int j, int limit) {
+        j++;
+        while (j < limit && (kinds[j] == Lexer.IDENTIFIER || is(j, "."))) {
+            j++;
+        }
+        if (is(j, "(") && j < limit) {
+            j = close(j, limit) + 1;
+        }
+        return j;
+    }
+
+    private int skipModifiers(int i, int limit) {
+        while (i < limit) {
+            if (kinds[i] == Lexer.KEYWORD && MODIFIERS.contains(texts[i])) {
+                i++;
+            } else if (is(i, "@") && !is(i + 1, "interface")) {
+                i = skipAnnotation(i, limit);
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    // the index after the type starting at j, -1 if there is none
+    private int typeEnd(int j, int limit) {
+        if (j >= limit || !(kinds[j] == Lexer.IDENTIFIER || PRIMITIVES.contains(texts[j]))) {
+            return -1;
+        }
+        j++;
+        while (true) {
+            while (is(j, ".") && j + 1 < limit && kinds[j + 1] == Lexer.IDENTIFIER) {
+                j = j + 2;
+            }
+            if (!is(j, "<")) {
+                break;
+            }
+            int depth = 0;
+            while (j < limit) {
+                String t = texts[j];
+                if (t.equals("<")) {
+                    depth++;
+                } else if (t.equals(">")) {
+                    depth--;
+                } else if (t.equals(">>")) {
+                    depth = depth - 2;
+                } else if (t.equals(">>>")) {
+                    depth = depth - 3;
+                } else if (!(kinds[j] == Lexer.IDENTIFIER || PRIMITIVES.contains(t) || t.equals(",")
+                            || t.equals(".") || t.equals("?") || t.equals("extends")
+                            || t.equals("super") || t.equals("[") || t.equals("]") || t.equals("&"))) {
+                    return -1;
+                }
+                j++;
+                if (depth <= 0) {
+                    break;
+                }
+            }
+            if (depth != 0) {
+                return -1;
+            }
+        }
+        while (is(j, "[") && is(j + 1, "]")) {
+            j = j + 2;
+        }
+        return j;
+    }
+
+    // the type as the Parser prints it, Map<String,Integer> or List<? extends T>
+    private String typeText(int from, int to) {
+        StringBuilder type = new StringBuilder();
+        for (int k = from; k < to; k++) {
+            if (is(k, "...")) {
+                continue;
+            }
+            if (k > from && kinds[k] != Lexer.OPERATOR
+                    && (kinds[k - 1] != Lexer.OPERATOR || is(k - 1, "?") || is(k - 1, "&"))) {
+                type.append(' ');
+            }
+            type.append(texts[k]);
+        }
+        return type.toString();
+    }
+
+    // the name of a variable declaration starting at i, -1 if it is none
+    private int declaration(int i, int limit) {
+        int j = typeEnd(skipModifiers(i, limit), limit);
+        if (j < 0 || j + 1 >= limit || kinds[j] != Lexer.IDENTIFIER) {
+            return -1;
+        }
+        if (is(j + 1, "=") || is(j + 1, ";") || is(j + 1, ",") || is(j + 1, "[") || is(j + 1, ":")) {
+            return j;
+        }
+        return -1;
+    }
+
+    // maps every variable of the declaration ending at e to its type
+    private void declareFragments(int typeStart, int nameIndex, int e) {
+        String type = typeText(typeStart, nameIndex);
+        variableMap.add(new Parser.TypeInfo(texts[nameIndex], scopeLevel, type));
+
+        int j = nameIndex + 1;
+        while (j < e) {
+            if (is(j, "(") || is(j, "[") || is(j, "{")) {
+                j = close(j, e + 1) + 1;
+                continue;
+            }
+            if (is(j, ",") && j + 1 < e && kinds[j + 1] == Lexer.IDENTIFIER
+                    && (is(j + 2, "=") || is(j + 2, ",") || is(j + 2, ";") || is(j + 2, "["))) {
+                variableMap.add(new Parser.TypeInfo(texts[j + 1], scopeLevel, type));
+            }
+            j++;
+        }
+    }
+
+    private boolean localType(int i, int limit) {
+        int j = skipModifiers(i, limit);
+        return is(j, "class") || is(j, "interface") || is(j, "enum");
+    }
+
+    /* Statements */
+
+    private int block(int b, int limit) {
+        int e = close(b, limit);
+
+        scopeLevel = scopeLevel + 1;
+        tk.statementEnd(scopeLevel);
+
+        int i = b + 1;
+        while (i < e) {
+            i = statement(i, e);
+        }
+
+        clearLocalVariables();
+        scopeLevel = scopeLevel - 1;
+        return e + 1;
+    }
+
+    // the statement starting at i, returns the index after it
+    private int statement(int i, int limit) {
+        if (i >= limit) {
+            return limit;
+        }
+        if (is(i, "{")) {
+            return block(i, limit);
+        }
+        if (is(i, ";")) {
+            return i + 1;
+        }
+
+        int e;
+        if (kinds[i] == Lexer.KEYWORD) {
+            String t = texts[i];
+            if (t.equals("if")) {
+                return ifStatement(i, limit, false);
+            } else if (t.equals("for")) {
+                return forStatement(i, limit);
+            } else if (t.equals("while")) {
+                statementStart(i, end(i, limit));
+                addHash(TokenType.WhileStatement, i);
+                return statement(condition(i, limit), limit);
+            } else if (t.equals("do")) {
+                statementStart(i, end(i, limit));
+                addHash(TokenType.DoStatement, i);
+                int k = statement(i + 1, limit);
+                if (is(k, "while") && k < limit) {
+                    k = condition(k, limit);
+                }
+                if (is(k, ";") && k < limit) {
+                    k++;
+                }
+                tk.statementEnd(scopeLevel);
+                return k;
+            } else if (t.equals("try")) {
+                return tryStatement(i, limit);
+            } else if (t.equals("switch")) {
+                // the Parser does not visit switch statements
+                int q = (is(i + 1, "(")) ? close(i + 1, limit) : i;
+                if (is(q + 1, "{") && q + 1 < limit) {
+                    return close(q + 1, limit) + 1;
+                }
+                return q + 1;
+            } else if (t.equals("synchronized") && is(i + 1, "(")) {
+                statementStart(i, end(i, limit));
+                addHash(TokenType.SynchronizedStatement, i);
+                return statement(condition(i, limit), limit);
+            } else if (t.equals("return")) {
+                // nor return statements
+                return simpleEnd(i, limit) + 1;
+            } else if (t.equals("throw") || t.equals("break")
+                    || t.equals("continue") || t.equals("assert")) {
+                e = simpleEnd(i, limit);
+                statementStart(i, e);
+                addHash(keywordStatement(t), i);
+                emit(i + 1, e);
+                tk.statementEnd(scopeLevel);
+                return e + 1;
+            } else if ((t.equals("this") || t.equals("super")) && is(i + 1, "(")) {
+                e = simpleEnd(i, limit);
+                statementStart(i, e);
+                addHash(TokenType.SuperConstructorInvocation, i);
+                emit(i + 1, e);
+                tk.statementEnd(scopeLevel);
+                return e + 1;
+            } else if (localType(i, limit)) {
+                return member(i, limit);
+            }
+        }
+
+        if (kinds[i] == Lexer.IDENTIFIER && is(i + 1, ":")) {
+            statementStart(i, end(i, limit));
+            addHash(TokenType.LabeledStatement, i);
+            tk.statementEnd(scopeLevel);
+            return statement(i + 2, limit);
+        }
+
+        e = simpleEnd(i, limit);
+        statementStart(i, e);
+        int nameIndex = declaration(i, e + 1);
+        if (nameIndex >= 0) {
+            addHash(TokenType.VariableDeclarationStatement, i);
+            declareFragments(skipModifiers(i, e), nameIndex, e);
+        }
+        emit(i, e);
+        tk.statementEnd(scopeLevel);
+        return e + 1;
+    }
+
+    private static TokenType keywordStatement(String keyword) {
+        if (keyword.equals("throw")) {
+            return TokenType.ThrowStatement;
+        } else if (keyword.equals("break")) {
+            return TokenType.BreakStatement;
+        } else if (keyword.equals("continue")) {
+            return TokenType.ContinueStatement;
+        }
+        return TokenType.AssertStatement;
+    }
+
+    // emits the parenthesized condition after the keyword at i, returns the index after it
+    private int condition(int i, int limit) {
+        if (!is(i + 1, "(") || i + 1 >= limit) {
+            return i + 1;
+        }
+        int q = close(i + 1, limit);
+        emit(i + 2, q);
+        return q + 1;
+    }
+
+    private int ifStatement(int i, int limit, boolean elseIf) {
+        statementStart(i, end(i, limit));
+        addHash(elseIf ? TokenType.Elseif : TokenType.IfStatement, i);
+
+        int k = statement(condition(i, limit), limit);
+        if (!is(k, "else") || k + 1 >= limit) {
+            return k;
+        }
+        if (is(k + 1, "if")) {
+            return ifStatement(k + 1, limit, true);
+        }
+        statementStart(k + 1, end(k + 1, limit));
+        addHash(TokenType.Else, k + 1);
+        tk.statementEnd(scopeLevel);
+        return statement(k + 1, limit);
+    }
+
+    private int forStatement(int i, int limit) {
+        statementStart(i, end(i, limit));
+        if (!is(i + 1, "(")) {
+            addHash(TokenType.ForStatement, i);
+            return statement(i + 1, limit);
+        }
+        int p = i + 1;
+        int q = close(p, limit);
+
+        int colon = -1;
+        for (int j = p + 1; j < q; j++) {
+            if (is(j, "(") || is(j, "[") || is(j, "{")) {
+                j = close(j, q);
+            } else if (is(j, "?") || is(j, ";")) {
+                break;
+            } else if (is(j, ":")) {
+                colon = j;
+                break;
+            }
+        }
+
+        if (colon >= 0) {
+            addHash(TokenType.EnhancedForStatement, i);
+            parameter(p + 1, colon);
+            emit(colon + 1, q);
+        } else {
+            addHash(TokenType.ForStatement, i);
+            int nameIndex = declaration(p + 1, q);
+            if (nameIndex >= 0) {
+                int typeStart = skipModifiers(p + 1, q);
+                addHash(TokenType.VariableDeclarationExpression, typeText(typeStart, nameIndex), i);
+                declareFragments(typeStart, nameIndex, simpleEnd(p + 1, q));
+            }
+            emit(p + 1, q);
+        }
+        return statement(q + 1, limit);
+    }
+
+    private int tryStatement(int i, int limit) {
+        statementStart(i, end(i, limit));
+        addHash(TokenType.TryStatement, i);
+        tk.statementEnd(scopeLevel);
+
+        int k = i + 1;
+        if (is(k, "(") && k < limit) {
+            // the resources
+            int q = close(k, limit);
+            int j = k + 1;
+            while (j < q) {
+                int s = simpleEnd(j, q);
+                int nameIndex = declaration(j, s + 1);
+                if (nameIndex >= 0) {
+                    declareFragments(skipModifiers(j, s), nameIndex, s);
+                }
+                emit(j, s + 1);
+                j = s + 1;
+            }
+            k = q + 1;
+        }
+        k = statement(k, limit);
+        while (is(k, "catch") && k < limit) {
+            statementStart(k, end(k, limit));
+            addHash(TokenType.CatchClause, k);
+            int next = k + 1;
+            if (is(k + 1, "(")) {
+                int q = close(k + 1, limit);
+                parameters(k + 1, q);
+                next = q + 1;
+            }
+            k = statement(next, limit);
+        }
+        if (is(k, "finally") && k < limit) {
+            k = statement(k + 1, limit);
+        }
+        return k;
+    }
+
+    // the index of the last token of the statement starting at i
+    private int end(int i, int limit) {
+        if (i >= limit) {
+            return limit - 1;
+        }
+        String t = texts[i];
+        if (t.equals("{")) {
+            return close(i, limit);
+        }
+        if (t.equals(";")) {
+            return i;
+        }
+        if (kinds[i] == Lexer.KEYWORD) {
+            if (t.equals("if")) {
+                int k = end(parenEnd(i, limit) + 1, limit);
+                if (k + 2 < limit && is(k + 1, "else")) {
+                    return end(k + 2, limit);
+                }
+                return k;
+            } else if (t.equals("for") || t.equals("while") || t.equals("synchronized")
+                    || t.equals("catch")) {
+                return end(parenEnd(i, limit) + 1, limit);
+            } else if (t.equals("do")) {
+                int k = end(i + 1, limit);
+                if (k + 1 < limit && is(k + 1, "while")) {
+                    int q = parenEnd(k + 1, limit);
+                    if (q + 1 < limit && is(q + 1, ";")) {
+                        return q + 1;
+                    }
+                    return q;
+                }
+                return k;
+            } else if (t.equals("try")) {
+                int k = i + 1;
+                if (is(k, "(") && k < limit) {
+                    k = close(k, limit) + 1;
+                }
+                int e = end(k, limit);
+                while (e + 1 < limit && is(e + 1, "catch")) {
+                    e = end(e + 1, limit);
+                }
+                if (e + 2 < limit && is(e + 1, "finally")) {
+                    e = end(e + 2, limit);
+                }
+                return e;
+            } else if (t.equals("switch")) {
+                int q = parenEnd(i, limit);
+                if (q + 1 < limit && is(q + 1, "{")) {
+                    return close(q + 1, limit);
+                }
+                return q;
+            }
+        }
+        if (kinds[i] == Lexer.IDENTIFIER && is(i + 1, ":") && i + 2 < limit) {
+            return end(i + 2, limit);
+        }
+        return simpleEnd(i, limit);
+    }
+
+    private int parenEnd(int i, int limit) {
+        if (i + 1 < limit && is(i + 1, "(")) {
+            return close(i + 1, limit);
+        }
+        return i;
+    }
+
+    // the semicolon ending the statement at i, bracketed code is skipped
+    private int simpleEnd(int i, int limit) {
+        int j = i;
+        while (j < limit) {
+            if (is(j, ";")) {
+                return j;
+            }
+            if (is(j, "(") || is(j, "[") || is(j, "{")) {
+                j = close(j, limit);
+            }
+            j++;
+        }
+        return limit - 1;
+    }
+
+    /* Tokens */
+
+    // hashes the tokens from up to to into the current statement
+    private void emit(int from, int to) {
+        int numCreations = creationEnds.size();
+        int j = from;
+        while (j < to) {
+            while (creationEnds.size() > numCreations && creationEnds.get(creationEnds.size() - 1) < j) {
+                creationEnds.remove(creationEnds.size() - 1);
+                scopeLevel = scopeLevel - 1;
+            }
+
+            String t = texts[j];
+            switch (kinds[j]) {
+            case Lexer.IDENTIFIER:
+                if (is(j + 1, "(") && !creationArguments[j + 1] && !is(j - 1, "@")) {
+                    if (is(j - 1, ".") && is(j - 2, "super")) {
+                        addHash(TokenType.SuperMethodInvocation, t, j);
+                    } else {
+                        addHash(TokenType.MethodInvocation, j);
+                        tk.hasMethodInvocation();
+                    }
+                }
+                simpleName(j);
+                break;
+            case Lexer.KEYWORD:
+                if (t.equals("new")) {
+                    creation(j, to);
+                } else if (t.equals("true") || t.equals("false")) {
+                    addHash(TokenType.BooleanLiteral, t, j);
+                } else if (t.equals("null")) {
+                    addHash(TokenType.NullLiteral, j);
+                } else if (t.equals("this")) {
+                    addHash(TokenType.ThisExpression, j);
+                } else if (t.equals("instanceof")) {
+                    addHash(TokenType.InstanceofExpression, j);
+                }
+                break;
+            case Lexer.NUMBER:
+                addHash(TokenType.NumberLiteral, j);
+                break;
+            case Lexer.STRING:
+                String strValue = t.substring(1, Math.max(1, t.length() - 1));
+                addHash(TokenType.StringLiteral, strValue, j);
+                Set<String> termSet = Utilities.extractTermsFromSentence(strValue);
+                for (String word : termSet) {
+                    tk.insertSimpleName(word);
+                }
+                break;
+            case Lexer.CHARACTER:
+                addHash(TokenType.CharacterLiteral, t, j);
+                break;
+            default:
+                if (t.equals("{")) {
+                    if (anonymousBody[j]) {
+                        addHash(TokenType.AnonymousClassDeclaration, j);
+                        typeBody(j, false, to);
+                        j = close(j, to) + 1;
+                        continue;
+                    } else if (is(j - 1, "->")) {
+                        j = block(j, to);
+                        continue;
+                    }
+                    addHash(TokenType.ArrayInitializer, j);
+                } else if (t.equals("[")) {
+                    if (!is(j + 1, "]")) {
+                        addHash(TokenType.ArrayAccess, j);
+                    }
+                } else if (t.equals("?") && wildcard(j)) {
+                    // a statement of its own in the Parser
+                    statementStart(j, j);
+                    addHash(TokenType.WildcardType, j);
+                    tk.statementEnd(scopeLevel);
+                } else if (t.equals("?")) {
+                    addHash(TokenType.ConditionalExpression, j);
+                } else if (ASSIGNMENTS.contains(t)) {
+                    addHash(TokenType.Assignment, t, j);
+                } else if (t.equals("++") || t.equals("--")) {
+                    addHash(TokenType.PostfixExpression, t, j);
+                } else if (t.equals("!") || t.equals("~")) {
+                    addHash(TokenType.InfixOperator, t, j);
+                } else if (isInfix(t)) {
+                    addHash(TokenType.InfixExpression, t, j);
+                }
+                break;
+            }
+            j++;
+        }
+
+        while (creationEnds.size() > numCreations) {
+            creationEnds.remove(creationEnds.size() - 1);
+            scopeLevel = scopeLevel - 1;
+        }
+    }
+
+    // a variable is hashed as its type
+    private void simpleName(int j) {
+        String varType = Parser.TypeInfo.getMappedType(texts[j], variableMap);
+        addHash(TokenType.SimpleName, (varType != null) ? varType : texts[j], j);
+        tk.insertSimpleName(texts[j]);
+    }
+
+    private boolean wildcard(int j) {
+        return (is(j - 1, "<") || is(j - 1, ",")) && (is(j + 1, "extends") || is(j + 1, "super")
+            || is(j + 1, ">") || is(j + 1, ">>") || is(j + 1, ">>>") || is(j + 1, ","));
+    }
+
+    private static boolean isInfix(String t) {
+        return t.equals("+") || t.equals("-") || t.equals("*") || t.equals("/") || t.equals("%")
+            || t.equals("&") || t.equals("|") || t.equals("^") || t.equals("&&") || t.equals("||")
+            || t.equals("==") || t.equals("!=") || t.equals("<") || t.equals(">") || t.equals("<=")
+            || t.equals(">=") || t.equals("<<") || t.equals(">>") || t.equals(">>>");
+    }
+
+    // a class instance creation opens a scope until its arguments or its body end
+    private void creation(int j, int to) {
+        int m = typeEnd(j + 1, to);
+        if (m >= 0 && is(m, "(") && m < to) {
+            addHash(TokenType.ClassInstanceCreation, j);
+            creationArguments[m] = true;
+            int q = close(m, to);
+            int end = q;
+            if (q + 1 < to && is(q + 1, "{")) {
+                anonymousBody[q + 1] = true;
+                end = close(q + 1, to);
+            }
+            scopeLevel = scopeLevel + 1;
+            creationEnds.add(end);
+        } else {
+            addHash(TokenType.ArrayCreation, j);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ * Locality sensitive hashing over the MinHash signatures of all the
+ * database methods. The signature is cut into bands, methods with an
+ * equal band land in the same bucket and become candidates for gapped
+ * matching if their estimated similarity reaches the threshold. The
+ * saved index is only used for the .db files it was built from, as
+ * recorded by the built digests of the manifest.
+ */
+public class LshIndex implements TextIndex {
+
+    private static final int MAGIC = 0x4C534858;   // "LSHX"
+    private static final int VERSION = 2;
+
+    // the file list the file positions refer to
+    List<String> fileList;
+
+    int signatureSize;
+    int numBands;
+
+    // methods are numbered in file order, fileStart[f] is the first one of file f
+    int[] fileStart = new int[16];
+    int numFiles = 0;
+    int numMethods = 0;
+
+    // signatures of all the methods, signatureSize values each
+    int[] signatures = new int[1024];
+
+    // (band, band hash) -> method numbers
+    HashMap<Long, PostingList> buckets = new HashMap<Long, PostingList>();
+
+    static class PostingList {
+        int[] data = new int[2];
+        int size = 0;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size] = value;
+            size++;
+        }
+    }
+
+    public LshIndex(List<String> fileListIn, int signatureSizeIn, int numBandsIn) {
+        fileList = fileListIn;
+        signatureSize = signatureSizeIn;
+        numBands = numBandsIn;
+    }
+
+    // files have to be added in the order of the file list
+    public void addText(int fileIndex, Text txt) {
+        ArrayList<int[]> methodSignatures = new ArrayList<int[]>();
+        for (int m = 0; m < txt.getNumMethods(); m++) {
+            methodSignatures.add(txt.getMethod(m).getMinHashes(signatureSize));
+        }
+        addFile(methodSignatures);
+    }
+
+    private void addFile(ArrayList<int[]> methodSignatures) {
+        if (numFiles + 1 >= fileStart.length) {
+            fileStart = Arrays.copyOf(fileStart, fileStart.length * 2);
+        }
+        fileStart[numFiles] = numMethods;
+        numFiles++;
+        fileStart[numFiles] = numMethods + methodSignatures.size();
+
+        for (int[] signature : methodSignatures) {
+            if ((numMethods + 1) * signatureSize > signatures.length) {
+                signatures = Arrays.copyOf(signatures,
+                        Math.max(signatures.length * 2, (numMethods + 1) * signatureSize));
+            }
+            System.arraycopy(signature, 0, signatures, numMethods * signatureSize, signatureSize);
+
+            for (int band = 0; band < numBands; band++) {
+                long key = bucketKey(signature, 0, band);
+                PostingList list = buckets.get(key);
+                if (list == null) {
+                    list = new PostingList();
+                    buckets.put(key, list);
+                }
+                list.add(numMethods);
+            }
+            numMethods++;
+        }
+    }
+
+    private long bucketKey(int[] signature, int offset, int band) {
+        int rows = signatureSize / numBands;
+        int hash = band;
+        for (int r = band * rows; r < (band + 1) * rows; r++) {
+            hash = hash * 31 + signature[offset + r];
+        }
+        return ((long) band << 32) | (hash & 0xffffffffL);
+    }
+
+    public int getMethodId(int file, int method) {
+        return fileStart[file] + method;
+    }
+
+    private int getFile(int methodId) {
+        int pos = Arrays.binarySearch(fileStart, 0, numFiles + 1, methodId);
+        if (pos < 0) {
+            return -pos - 2;
+        }
+        // skip files without methods
+        while (fileStart[pos + 1] == methodId) {
+            pos++;
+        }
+        return pos;
+    }
+
+    // fraction of equal signature values, estimates the Jaccard similarity
+    private double similarity(int[] signature1, int offset1, int[] signature2, int offset2) {
+        int equal = 0;
+        for (int i = 0; i < signatureSize; i++) {
+            if (signature1[offset1 + i] == signature2[offset2 + i]) {
+                equal++;
+            }
+        }
+        return (double) equal / signatureSize;
+    }
+
+    /*
+     * All the method pairs of different files sharing a bucket and reaching
+     * the threshold, as {file1, method1, file2, method2} with file1 < file2,
+     * in the order of the exhaustive mesh comparison.
+     */
+    public ArrayList<int[]> meshCandidates(double threshold) {
+        HashSet<Long> seen = new HashSet<Long>();
+        ArrayList<int[]> candidateList = new ArrayList<int[]>();
+        for (PostingList list : buckets.values()) {
+            for (int a = 0; a < list.size; a++) {
+                int id1 = list.data[a];
+                int file1 = getFile(id1);
+                for (int b = a + 1; b < list.size; b++) {
+                    int id2 = list.data[b];
+                    int file2 = getFile(id2);
+                    if (file1 == file2 || !seen.add(((long) id1 << 32) | id2)) {
+                        continue;
+                    }
+                    if (similarity(signatures, id1 * signatureSize,
+                                signatures, id2 * signatureSize) < threshold) {
+                        continue;
+                    }
+                    // postings are in method order, so file1 < file2
+                    candidateList.add(new int[] {file1, id1 - fileStart[file1],
+                            file2, id2 - fileStart[file2]});
+                }
+            }
+        }
+
+        Collections.sort(candidateList, new Comparator<int[]>() {
+            public int compare(int[] c1, int[] c2) {
+                if (c1[0] != c2[0]) {
+                    return c1[0] < c2[0] ? -1 : 1;
+                }
+                if (c1[2] != c2[2]) {
+                    return c1[2] < c2[2] ? -1 : 1;
+                }
+                if (c1[1] != c2[1]) {
+                    return c1[1] < c2[1] ? -1 : 1;
+                }
+                if (c1[3] != c2[3]) {
+                    return c1[3] < c2[3] ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        return candidateList;
+    }
+
+    /*
+     * Find the database methods sharing a bucket with the given project
+     * method and reaching the threshold, recorded per database file in
+     * the same form as HashIndex.addCandidates.
+     */
+    public void addCandidates(int[] signature, double threshold,
+            int projectFile, int projectMethod, HashMap<Integer, HashSet<Long>> candidateMap) {
+
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (int band = 0; band < numBands; band++) {
+            PostingList list = buckets.get(bucketKey(signature, 0, band));
+            if (list == null) {
+                continue;
+            }
+            for (int p = 0; p < list.size; p++) {
+                int id = list.data[p];
+                if (!seen.add(id)) {
+                    continue;
+                }
+                if (similarity(signature, 0, signatures, id * signatureSize) < threshold) {
+                    continue;
+                }
+
+                int file = getFile(id);
+                HashSet<Long> candidates = candidateMap.get(file);
+                if (candidates == null) {
+                    candidates = new HashSet<Long>();
+                    candidateMap.put(file, candidates);
+                }
+                candidates.add(HashIndex.packCandidate(projectFile, projectMethod, id - fileStart[file]));
+            }
+        }
+    }
+
+    // only the signatures are stored, the buckets are rebuilt on loading
+    public void save(String filePath, Manifest manifest) {
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(CorpusStore.getListDigest(manifest));
+            dos.writeInt(signatureSize);
+            dos.writeInt(numBands);
+
+            dos.writeInt(fileList.size());
+            for (String path : fileList) {
+                dos.writeUTF(path);
+            }
+
+            for (int f = 0; f < numFiles; f++) {
+                dos.writeInt(fileStart[f + 1] - fileStart[f]);
+            }
+            for (int i = 0; i < numMethods * signatureSize; i++) {
+                dos.writeInt(signatures[i]);
+            }
+        } catch (IOException e) {
+            System.out.println("Error while writing LSH index\n" + e);
+            System.exit(0);
+        } finally {
+            try {
+                if (dos != null) {
+                    dos.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+
+    // returns null if there is no index for this file list, .db files and signature shape
+    public static LshIndex load(String filePath, Manifest manifest,
+            int signatureSize, int numBands) {
+        List<String> fileList = manifest.getFileList();
+        File f = new File(filePath);
+        if (!f.exists() || f.isDirectory()) {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION ||
+                    dis.readLong() != CorpusStore.getListDigest(manifest) ||
+                    dis.readInt() != signatureSize || dis.readInt() != numBands) {
+                return null;
+            }
+
+            int numFiles = dis.readInt();
+            if (numFiles != fileList.size()) {
+                return null;
+            }
+            for (int i = 0; i < numFiles; i++) {
+                if (!dis.readUTF().equals(fileList.get(i))) {
+                    return null;
+                }
+            }
+
+            int[] methodCounts = new int[numFiles];
+            for (int i = 0; i < numFiles; i++) {
+                methodCounts[i] = dis.readInt();
+            }
+
+            LshIndex index = new LshIndex(fileList, signatureSize, numBands);
+            for (int i = 0; i < numFiles; i++) {
+                ArrayList<int[]> methodSignatures = new ArrayList<int[]>();
+                for (int m = 0; m < methodCounts[i]; m++) {
+                    int[] signature = new int[signatureSize];
+                    for (int j = 0; j < signatureSize; j++) {
+                        signature[j] = dis.readInt();
+                    }
+                    methodSignatures.add(signature);
+                }
+                index.addFile(methodSignatures);
+            }
+            return index;
+        } catch (IOException e) {
+            System.out.println("Error while loading LSH index\n" + e);
+            return null;
+        } finally {
+            try {
+                if (dis != null) {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+
+    // rebuild the index from the cached .db files
+    public static LshIndex build(List<String> fileList, String databaseDir, int minNumLines,
+            int signatureSize, int numBands) {
+        System.out.println("\nBuilding LSH index for " + fileList.size() + " files");
+        LshIndex index = new LshIndex(fileList, signatureSize, numBands);
+        for (int i = 0; i < fileList.size(); i++) {
+            Text txt = Database.loadSingleFile(fileList.get(i), databaseDir, minNumLines, false);
+            index.addText(i, txt);
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+        return index;
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Binary list of the database files, with a digest of each source file
+ * and a small summary of each cached file: its number of methods, its
+ * longest method and a Bloom filter of its statement hashes. A file pair
+ * that cannot share minNumLines statements is rejected without loading
+ * the .db file, and the digests tell which files changed between runs.
+ * The size and modification time of each source file are kept too, a
+ * file that still has both is not read again to compute its digest.
+ * The digest each .db file was built from is kept apart from the digest
+ * of the source, it only changes when the .db file is written again.
+ */
+public class Manifest implements TextIndex {
+
+    private static final int MAGIC = 0x4D414E49;   // "MANI"
+    private static final int VERSION = 5;
+
+    // hash functions per Bloom filter and bits per distinct hash
+    private static final int NUM_BLOOM_HASHES = 4;
+    private static final int BITS_PER_HASH = 10;
+
+    List<String> fileList;
+
+    // summary of each file, null if the file was not summarized yet
+    FileSummary[] summaries;
+
+    // content digest of each source file, 0 if not computed
+    long[] digests;
+
+    // digest of the source each .db file was built from, 0 if not known
+    long[] builtDigests;
+
+    // size and modification time of each source file when it was digested
+    long[] sizes;
+    long[] modifiedTimes;
+
+    // settings the .db files were built with, -1 if not known
+    int minNumLines = -1;
+    int fingerprintSize = -1;
+    // built by the LexerParser instead of the Parser, the hashes differ
+    boolean useLexer = false;
+
+    // position of each file in the list, made on first use
+    HashMap<String, Integer> fileIndex;
+
+    static class FileSummary {
+        int numMethods;
+        int maxMethodLength;
+        long[] bloom;
+
+        boolean mayContain(int hash) {
+            long numBits = (long) bloom.length * 64;
+            int h1 = hash * 0x9E3779B1;
+            int h2 = (hash ^ (hash >>> 15)) * 0x85EBCA6B | 1;
+            for (int i = 0; i < NUM_BLOOM_HASHES; i++) {
+                long bit = ((h1 + i * h2) & 0xffffffffL) % numBits;
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(int hash) {
+            long numBits = (long) bloom.length * 64;
+            int h1 = hash * 0x9E3779B1;
+            int h2 = (hash ^ (hash >>> 15)) * 0x85EBCA6B | 1;
+            for (int i = 0; i < NUM_BLOOM_HASHES; i++) {
+                long bit = ((h1 + i * h2) & 0xffffffffL) % numBits;
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    public Manifest(List<String> fileListIn) {
+        fileList = fileListIn;
+        summaries = new FileSummary[fileList.size()];
+        digests = new long[fileList.size()];
+        builtDigests = new long[fileList.size()];
+        sizes = new long[fileList.size()];
+        modifiedTimes = new long[fileList.size()];
+    }
+
+    public List<String> getFileList() {
+        return fileList;
+    }
+
+    public void addText(int fileIndex, Text txt) {
+        summaries[fileIndex] = summarize(txt);
+    }
+
+    public static FileSummary summarize(Text txt) {
+        FileSummary summary = new FileSummary();
+        HashSet<Integer> hashes = new HashSet<Integer>();
+        summary.numMethods = txt.getNumMethods();
+        for (int m = 0; m < txt.getNumMethods(); m++) {
+            int[] hashArray = txt.getMethod(m).getHashArray();
+            summary.maxMethodLength = Math.max(summary.maxMethodLength, hashArray.length);
+            for (int hash : hashArray) {
+                hashes.add(hash);
+            }
+        }
+
+        int numWords = (hashes.size() * BITS_PER_HASH + 63) / 64;
+        summary.bloom = new long[Math.max(numWords, 1)];
+        for (int hash : hashes) {
+            summary.add(hash);
+        }
+        return summary;
+    }
+
+    // first 8 bytes of the SHA-1 of the file content
+    public static long digest(String filePath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(Files.readAllBytes(Paths.get(filePath)));
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (hash[i] & 0xff);
+            }
+            return value;
+        } catch (NoSuchAlgorithmException e) {
+            System.out.println("Error while computing digest\n" + e);
+            System.exit(0);
+        } catch (IOException e) {
+            System.out.println("Error while reading " + filePath + "\n" + e);
+        }
+        return 0;
+    }
+
+    /*
+     * Manifest of the .java files under dir, hidden ones left out. The
+     * digests are computed on the walker threads while the walk goes on,
+     * files with the size and time they had in previous keep their digest.
+     */
+    public static Manifest generate(String dir, Manifest previous) {
+        final HashMap<String, Integer> previousIndex = new HashMap<String, Integer>();
+        if (previous != null) {
+            for (int i = 0; i < previous.fileList.size(); i++) {
+                previousIndex.put(previous.fileList.get(i), i);
+            }
+        }
+        final Manifest last = previous;
+        final ConcurrentHashMap<String, Long> digestMap = new ConcurrentHashMap<String, Long>();
+
+        System.out.println("\nObtaining a list of files and their digests");
+        List<FileWalker.FileEntry> entryList = FileWalker.walk(dir, true, false, Database.numScanThreads,
+                new FileWalker.Listener() {
+                    public void fileFound(FileWalker.FileEntry entry) {
+                        Integer p = previousIndex.get(entry.path);
+                        if (p == null || last.digests[p] == 0 ||
+                                last.sizes[p] != entry.size || last.modifiedTimes[p] != entry.modifiedTime) {
+                            digestMap.put(entry.path, digest(entry.path));
+                        }
+                    }
+                });
+
+        List<String> fileList = new ArrayList<String>();
+        for (FileWalker.FileEntry entry : entryList) {
+            fileList.add(entry.path);
+        }
+        Manifest manifest = new Manifest(fileList);
+        for (int i = 0; i < entryList.size(); i++) {
+            FileWalker.FileEntry entry = entryList.get(i);
+            manifest.sizes[i] = entry.size;
+            manifest.modifiedTimes[i] = entry.modifiedTime;
+            Integer p = previousIndex.get(entry.path);
+            Long value = digestMap.get(entry.path);
+            if (value != null) {
+                manifest.digests[i] = value;
+            } else {
+                manifest.digests[i] = previous.digests[p];
+            }
+            if (p != null) {
+                manifest.builtDigests[i] = previous.builtDigests[p];
+            }
+        }
+        System.out.println(fileList.size() + " files, " + digestMap.size() + " files read");
+        return manifest;
+    }
+
+    public void setBuildSettings(int minNumLinesIn, int fingerprintSizeIn, boolean useLexerIn) {
+        minNumLines = minNumLinesIn;
+        fingerprintSize = fingerprintSizeIn;
+        useLexer = useLexerIn;
+    }
+
+    public boolean hasBuildSettings(int minNumLinesIn, int fingerprintSizeIn, boolean useLexerIn) {
+        return minNumLines == minNumLinesIn && fingerprintSize == fingerprintSizeIn &&
+                useLexer == useLexerIn;
+    }
+
+    // the .db files marked in rebuild, all of them if it is null, were written from the sources
+    public void markBuilt(boolean[] rebuild) {
+        for (int i = 0; i < fileList.size(); i++) {
+            if (rebuild == null || rebuild[i]) {
+                builtDigests[i] = digests[i];
+            }
+        }
+    }
+
+    /*
+     * Files whose .db file has to be built again: the new and changed
+     * files and the ones missing their .db file, or all of them if the
+     * previous build used other settings. The summaries of the others are
+     * taken over from the previous manifest.
+     */
+    public boolean[] staleFiles(Manifest previous) {
+        boolean[] stale = new boolean[fileList.size()];
+        if (!previous.hasBuildSettings(minNumLines, fingerprintSize, useLexer)) {
+            Arrays.fill(stale, true);
+            return stale;
+        }
+
+        boolean[] changed = diff(previous);
+        for (int i = 0; i < fileList.size(); i++) {
+            if (changed[i] || !new File(Text.getDBpath(fileList.get(i))).exists()) {
+                stale[i] = true;
+                summaries[i] = null;
+            }
+        }
+        return stale;
+    }
+
+    /*
+     * Files that are new or changed since their .db file was built, as
+     * recorded in the previous manifest, or all of them if it was built
+     * with other settings or the other tokenizer. The summaries of the other files are taken over
+     * from the previous one.
+     */
+    public boolean[] diff(Manifest previous) {
+        if (!previous.hasBuildSettings(minNumLines, fingerprintSize, useLexer)) {
+            boolean[] changed = new boolean[fileList.size()];
+            Arrays.fill(changed, true);
+            return changed;
+        }
+
+        HashMap<String, Integer> previousIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < previous.fileList.size(); i++) {
+            previousIndex.put(previous.fileList.get(i), i);
+        }
+
+        boolean[] changed = new boolean[fileList.size()];
+        for (int i = 0; i < fileList.size(); i++) {
+            Integer p = previousIndex.get(fileList.get(i));
+            if (p == null || digests[i] == 0 || previous.builtDigests[p] != digests[i]) {
+                changed[i] = true;
+            } else if (summaries[i] == null) {
+                summaries[i] = previous.summaries[p];
+            }
+        }
+        return changed;
+    }
+
+    /*
+     * True if the .db file of filePath was written from the source as it
+     * is now. A file outside the manifest, e.g. a project file of a
+     * between comparison, only needs a .db file newer than its source.
+     */
+    public boolean isBuiltFromSource(String filePath) {
+        if (fileIndex == null) {
+            fileIndex = new HashMap<String, Integer>();
+            for (int i = 0; i < fileList.size(); i++) {
+                fileIndex.put(fileList.get(i), i);
+            }
+        }
+
+        File f = new File(filePath);
+        Integer i = fileIndex.get(filePath);
+        if (i == null) {
+            return new File(Text.getDBpath(filePath)).lastModified() >= f.lastModified();
+        }
+        if (builtDigests[i] == 0) {
+            return false;
+        }
+        long current = digests[i];
+        if (current == 0 || f.length() != sizes[i] || f.lastModified() != modifiedTimes[i]) {
+            // changed since the manifest was made
+            current = digest(filePath);
+        }
+        return current == builtDigests[i];
+    }
+
+    // files of the previous manifest that are not in this one
+    public HashSet<String> deletedFiles(Manifest previous) {
+        HashSet<String> deleted = new HashSet<String>(previous.fileList);
+        deleted.removeAll(fileList);
+        return deleted;
+    }
+
+    public boolean isComplete() {
+        for (FileSummary summary : summaries) {
+            if (summary == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // summarize the files that are missing a summary from their .db files
+    public void summarizeMissing(String databaseDir, int minNumLines) {
+        System.out.println("\nSummarizing cached database files");
+        for (int i = 0; i < fileList.size(); i++) {
+            if (summaries[i] == null) {
+                Text txt = Database.loadSingleFile(fileList.get(i), databaseDir, minNumLines, false);
+                summaries[i] = summarize(txt);
+            }
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+    }
+
+    /*
+     * False only if no method of text can share minNumLines statements
+     * with the file at fileIndex. Both exact and gapped clones need that
+     * many statements of the first method to appear in the other file.
+     */
+    public boolean mayMatch(Text text, int fileIndex, int minNumLines) {
+        FileSummary summary = summaries[fileIndex];
+        if (summary == null) {
+            return true;
+        }
+        if (summary.numMethods == 0 || summary.maxMethodLength < minNumLines) {
+            return false;
+        }
+
+        for (int m = 0; m < text.getNumMethods(); m++) {
+            IntBuffer hashes = text.getHashes(m);
+            int length = hashes.limit();
+            if (length < minNumLines) {
+                continue;
+            }
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                if (summary.mayContain(hashes.get(i))) {
+                    count++;
+                    if (count >= minNumLines) {
+                        return true;
+                    }
+                } else if (count + length - i - 1 < minNumLines) {
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void save(String filePath) {
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(minNumLines);
+            dos.writeInt(fingerprintSize);
+            dos.writeBoolean(useLexer);
+
+            dos.writeInt(fileList.size());
+            for (int i = 0; i < fileList.size(); i++) {
+                dos.writeUTF(fileList.get(i));
+                dos.writeLong(digests[i]);
+                dos.writeLong(builtDigests[i]);
+                dos.writeLong(sizes[i]);
+                dos.writeLong(modifiedTimes[i]);
+                FileSummary summary = summaries[i];
+                if (summary == null) {
+                    dos.writeBoolean(false);
+                    continue;
+                }
+                dos.writeBoolean(true);
+                dos.writeInt(summary.numMethods);
+                dos.writeInt(summary.maxMethodLength);
+                dos.writeInt(summary.bloom.length);
+                for (long word : summary.bloom) {
+                    dos.writeLong(word);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error while writing manifest\n" + e);
+            System.exit(0);
+        } finally {
+            try {
+                if (dos != null) {
+                    dos.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+
+    // returns null if there is no readable manifest
+    public static Manifest load(String filePath) {
+        File f = new File(filePath);
+        if (!f.exists() || f.isDirectory()) {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                return null;
+            }
+            int minNumLines = dis.readInt();
+            int fingerprintSize = dis.readInt();
+            boolean useLexer = dis.readBoolean();
+
+            int numFiles = dis.readInt();
+            List<String> fileList = new ArrayList<String>();
+            FileSummary[] summaries = new FileSummary[numFiles];
+            long[] digests = new long[numFiles];
+            long[] builtDigests = new long[numFiles];
+            long[] sizes = new long[numFiles];
+            long[] modifiedTimes = new long[numFiles];
+            for (int i = 0; i < numFiles; i++) {
+                fileList.add(dis.readUTF());
+                digests[i] = dis.readLong();
+                builtDigests[i] = dis.readLong();
+                sizes[i] = dis.readLong();
+                modifiedTimes[i] = dis.readLong();
+                if (dis.readBoolean() == false) {
+                    continue;
+                }
+                FileSummary summary = new FileSummary();
+                summary.numMethods = dis.readInt();
+                summary.maxMethodLength = dis.readInt();
+                summary.bloom = new long[dis.readInt()];
+                for (int j = 0; j < summary.bloom.length; j++) {
+                    summary.bloom[j] = dis.readLong();
+                }
+                summaries[i] = summary;
+            }
+
+            Manifest manifest = new Manifest(fileList);
+            manifest.summaries = summaries;
+            manifest.digests = digests;
+            manifest.builtDigests = builtDigests;
+            manifest.sizes = sizes;
+            manifest.modifiedTimes = modifiedTimes;
+            manifest.setBuildSettings(minNumLines, fingerprintSize, useLexer);
+            return manifest;
+        } catch (IOException e) {
+            System.out.println("Error while loading manifest\n" + e);
+            return null;
+        } finally {
+            try {
+                if (dis != null) {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+}
@@ -2,9 +2,6 @@ import java.util.Iterator;
 
 import java.io.Serializable;
 
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.File;
 
 import java.util.ArrayList;
 import java.util.Map;
@@ -34,12 +31,39 @@ public class MatchGroup implements Serializable {
     HashSet<MatchInstance> masterList = new HashSet<MatchInstance>();
     HashSet<MatchInstance> cloneList = new HashSet<MatchInstance>();
     int matchLength;
-    int totalHashValue;
+    long groupKey;
+
+    // 64-bit hashes of the statements every instance of the group shares
+    long[] statementHashes;
 
     public MatchGroup (int length) {
         matchLength = length;
     }
 
+    public MatchGroup (int length, long[] statementHashesIn) {
+        matchLength = length;
+        statementHashes = statementHashesIn;
+    }
+
+    public static long[] getHashSequence(List<Statement> statementList) {
+        long[] hashes = new long[statementList.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = statementList.get(i).longHash;
+        }
+        return hashes;
+    }
+
+    // order-sensitive fingerprint of a hash sequence
+    public static long getSequenceKey(long[] statementHashes) {
+        long h = statementHashes.length;
+        for (long hash : statementHashes) {
+            h = h * 0x9E3779B97F4A7C15L + hash;
+            h = h ^ (h >>> 29);
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+
     public HashSet<String> dumpTerms () {
         // obtain a list of strings       
         HashSet<String> masterNameSet = new HashSet<String>();
@@ -106,11 +130,11 @@ public class MatchGroup implements Serializable {
 
     // adds a match into the matchgroup
     public void addMatch(int mode, String fileName, int startLine, int endLine, 
-            ArrayList<Statement> statements, int startIndex, int endIndex, int totalHash) {
+            ArrayList<Statement> statements, int startIndex, int endIndex, long key) {
 
         HashSet<MatchInstance> list;
 
-        totalHashValue = totalHash;
+        groupKey = key;
 
         if (mode == 0) {
             // add to master
@@ -127,6 +151,56 @@ public class MatchGroup implements Serializable {
 
     }
 
+    // adds the instances of another group that are not in this one yet
+    public void addGroup(MatchGroup other) {
+        for (MatchInstance thisMatch : other.masterList) {
+            if (!masterList.contains(thisMatch) && !cloneList.contains(thisMatch)) {
+                masterList.add(thisMatch);
+            }
+        }
+        for (MatchInstance thisMatch : other.cloneList) {
+            if (!masterList.contains(thisMatch) && !cloneList.contains(thisMatch)) {
+                cloneList.add(thisMatch);
+            }
+        }
+    }
+
+    /*
+     * Drops the instances in the given files. If all the masters are gone
+     * the first remaining clone (by file and line) becomes the master.
+     * Returns false if less than two instances are left.
+     */
+    public boolean removeFiles(Set<String> fileNames) {
+        Iterator<MatchInstance> it = masterList.iterator();
+        while (it.hasNext()) {
+            if (fileNames.contains(it.next().fileName)) {
+                it.remove();
+            }
+        }
+        it = cloneList.iterator();
+        while (it.hasNext()) {
+            if (fileNames.contains(it.next().fileName)) {
+                it.remove();
+            }
+        }
+
+        if (masterList.size() + cloneList.size() < 2) {
+            return false;
+        }
+        if (masterList.size() == 0) {
+            MatchInstance first = null;
+            for (MatchInstance thisMatch : cloneList) {
+                if (first == null || thisMatch.fileName.compareTo(first.fileName) < 0 ||
+                        (thisMatch.fileName.equals(first.fileName) && thisMatch.startLine < first.startLine)) {
+                    first = thisMatch;
+                }
+            }
+            cloneList.remove(first);
+            masterList.add(first);
+        }
+        return true;
+    }
+
     // mode 0 - master, 1 - clone, 2 - both
     public boolean checkMatchExist(String filePath, int lineStart, int lineEnd, int mode) {
 
@@ -207,13 +281,10 @@ public class MatchGroup implements Serializable {
 
     }
 
-    private ArrayList<CommentMap> removeInline(ArrayList<CommentMap> commentList, 
-            String filePath) {
+    private ArrayList<CommentMap> removeInline(ArrayList<CommentMap> commentList) {
 
         ArrayList<CommentMap> newList = new ArrayList<CommentMap>();
 
-        Pattern pattern = Pattern.compile("^[\\s\t]*\\/\\/.+$");
-
         for (int i = 0; i < commentList.size(); i++) {
             CommentMap cMap = commentList.get(i);
             
@@ -221,33 +292,9 @@ public class MatchGroup implements Serializable {
             int endLine = cMap.endLine;
 
             if (startLine == endLine && cMap.commentType == 1) {
-                BufferedReader reader = null;
-                try {
-                    File file = new File(filePath);
-                    reader = new BufferedReader(new FileReader(file));
-                    int currentLine = 1;
-                    String line = reader.readLine();
-                    while (line != null) {
-                        if (currentLine == startLine) {
-                            Matcher matcher = pattern.matcher(line);
-                            if (matcher.find()) {
-                                newList.add(cMap);
-                            }
-                        }
-                        line = reader.readLine();
-                        currentLine++;
-                    }
-                } catch (Exception e) {
-                    System.out.println("Error inside remove inline\n" + e);
-                    System.exit(0);
-                } finally {
-                    try {
-                        if (reader != null) {
-                            reader.close();
-                        }
-                    } catch (IOException e) {
-                        System.out.println("Error in removeInline()");
-                    }
+                // only line comments that are alone on their line
+                if (cMap.standalone) {
+                    newList.add(cMap);
                 }
             } else {
                 newList.add(cMap);
@@ -424,18 +471,43 @@ public class MatchGroup implements Serializable {
 
     }
 
-    public void mapCode2Comment() {
+    /*
+     * The comments stored with the method of the range in its .db file.
+     * The source file is only parsed if the .db file is not current or the
+     * method is not found there. The .db files are read once per file and
+     * kept in textMap, null for the ones that cannot be used.
+     */
+    private static CommentParser getCommentParser(String filePath, int startLine, int endLine,
+            Manifest manifest, HashMap<String, Text> textMap) {
+        if (!textMap.containsKey(filePath)) {
+            textMap.put(filePath, Database.loadCommentText(filePath, manifest));
+        }
+        Text txt = textMap.get(filePath);
+        ArrayList<CommentMap> comments = null;
+        if (txt != null) {
+            comments = Database.getMethodComments(txt, startLine, endLine);
+        }
+        if (comments == null) {
+            return new CommentParser(filePath);
+        }
+        return new CommentParser(comments);
+    }
+
+    // the manifest tells which .db files are current, may be null to parse every source
+    public void mapCode2Comment(Manifest manifest) {
+        HashMap<String, Text> textMap = new HashMap<String, Text>();
+
         for (MatchInstance thisMatch : masterList) {
             String filePath = thisMatch.fileName;
             int startLine = thisMatch.startLine;
             int endLine = thisMatch.endLine;
 
             // get the list of comments associated
-            CommentParser cParser = new CommentParser(filePath);
+            CommentParser cParser = getCommentParser(filePath, startLine, endLine, manifest, textMap);
             ArrayList<CommentMap> commentList = cParser.parseComment(filePath, startLine, endLine, 0);
 
             // remove in-line comments
-            commentList = removeInline(commentList, filePath);
+            commentList = removeInline(commentList);
 
             // group the comments
             commentList = groupNormalizeComment(commentList);
@@ -449,11 +521,11 @@ public class MatchGroup implements Serializable {
             int endLine = thisMatch.endLine;
 
             // get the list of comments associated
-            CommentParser cParser = new CommentParser(filePath);
+            CommentParser cParser = getCommentParser(filePath, startLine, endLine, manifest, textMap);
             ArrayList<CommentMap> commentList = cParser.parseComment(filePath, startLine, endLine, 0);
 
             // remove in-line comments
-            commentList = removeInline(commentList, filePath);
+            commentList = removeInline(commentList);
 
             // group the comments
             commentList = groupNormalizeComment(commentList);
@@ -607,11 +679,11 @@ public class MatchGroup implements Serializable {
         
     }
 
-    public int getHashValue() {
-        return totalHashValue;
+    public long getGroupKey() {
+        return groupKey;
     }
 
-    public void findClones(HashSet<String> inputTerms) {
+    public void findClones(HashSet<String> inputTerms, Manifest manifest) {
 
         HashSet<String> matchGroupTerms = dumpTerms();
         boolean allExist = true;
@@ -623,7 +695,7 @@ public class MatchGroup implements Serializable {
         }
 
         if (allExist) {
-            mapCode2Comment();
+            mapCode2Comment(manifest);
             printAllMappings(true, 1, 1);
         }
     }
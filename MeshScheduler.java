@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Runs the text pairs of a mesh comparison on a fork-join pool.
+ * Rows (the outer texts) are split recursively, and a single row is
+ * split further on its columns. Every task records its clones into a
+ * CloneBuffer and the buffers are joined in row/column order, so
+ * replaying the result gives the same groups as the sequential loops.
+ */
+public class MeshScheduler {
+
+    // smallest number of columns of a row that is split further
+    private static final int COLUMN_GRAIN = 8;
+
+    ForkJoinPool pool;
+
+    Compare comp;
+
+    int mode;
+
+    int gapSize;
+
+    public MeshScheduler(Compare compIn, int numThreads, int modeIn, int gapSizeIn) {
+        comp = compIn;
+        mode = modeIn;
+        gapSize = gapSizeIn;
+        pool = new ForkJoinPool(numThreads);
+    }
+
+    // every pair (j, k) with j < k inside the block
+    public CloneBuffer compareWithin(ArrayList<Text> block) {
+        return pool.invoke(new PairTask(block, null, 0, 0, block.size(), -1, -1));
+    }
+
+    /*
+     * Every text of the block against the texts of a later block, whose
+     * first file is at otherFrom in the database list. The clones come
+     * back in one buffer per row of the block.
+     */
+    public CloneBuffer[] compareBlocks(ArrayList<Text> block, ArrayList<Text> other, int otherFrom) {
+        ArrayList<PairTask> taskList = new ArrayList<PairTask>();
+        for (int j = 0; j < block.size(); j++) {
+            PairTask task = new PairTask(block, other, otherFrom, j, j + 1, -1, -1);
+            pool.execute(task);
+            taskList.add(task);
+        }
+
+        CloneBuffer[] buffers = new CloneBuffer[block.size()];
+        for (int j = 0; j < block.size(); j++) {
+            buffers[j] = taskList.get(j).join();
+        }
+        return buffers;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    class PairTask extends RecursiveTask<CloneBuffer> {
+
+        ArrayList<Text> block;
+
+        // null when comparing within the block
+        ArrayList<Text> other;
+        int otherFrom;
+
+        int rowLo, rowHi;
+        int colLo, colHi;
+
+        PairTask(ArrayList<Text> blockIn, ArrayList<Text> otherIn, int otherFromIn,
+                int rowLoIn, int rowHiIn, int colLoIn, int colHiIn) {
+            block = blockIn;
+            other = otherIn;
+            otherFrom = otherFromIn;
+            rowLo = rowLoIn;
+            rowHi = rowHiIn;
+            colLo = colLoIn;
+            colHi = colHiIn;
+        }
+
+        private PairTask rows(int lo, int hi) {
+            return new PairTask(block, other, otherFrom, lo, hi, -1, -1);
+        }
+
+        private PairTask columns(int lo, int hi) {
+            return new PairTask(block, other, otherFrom, rowLo, rowHi, lo, hi);
+        }
+
+        protected CloneBuffer compute() {
+            if (rowHi - rowLo == 0) {
+                return new CloneBuffer();
+            }
+
+            if (rowHi - rowLo > 1) {
+                int mid = (rowLo + rowHi) >>> 1;
+                return join(rows(rowLo, mid), rows(mid, rowHi));
+            }
+
+            // a single row, work out its columns
+            if (colLo < 0) {
+                if (other == null) {
+                    colLo = rowLo + 1;
+                    colHi = block.size();
+                } else {
+                    colLo = 0;
+                    colHi = other.size();
+                }
+            }
+
+            if (colHi - colLo > COLUMN_GRAIN) {
+                int mid = (colLo + colHi) >>> 1;
+                return join(columns(colLo, mid), columns(mid, colHi));
+            }
+
+            CloneBuffer buffer = new CloneBuffer();
+            Text text1 = block.get(rowLo);
+            for (int k = colLo; k < colHi; k++) {
+                Text text2;
+                if (other == null) {
+                    text2 = block.get(k);
+                } else {
+                    text2 = other.get(k);
+                    if (text2 == null || !comp.mayMatch(text1, otherFrom + k)) {
+                        // the manifest rules this file out
+                        continue;
+                    }
+                }
+                comp.textCompare(text1, text2, mode, gapSize, buffer);
+            }
+            return buffer;
+        }
+
+        // run both halves and keep the left one first
+        private CloneBuffer join(PairTask left, PairTask right) {
+            right.fork();
+            CloneBuffer buffer = left.compute();
+            buffer.append(right.join());
+            return buffer;
+        }
+    }
+}
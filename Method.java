@@ -2,7 +2,13 @@ import org.eclipse.jdt.core.dom.*;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
+import java.nio.IntBuffer;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import java.util.Set;
@@ -16,6 +22,24 @@ public class Method implements Serializable {
     int methodStartLine;
     int methodEndLine;
 
+    // statement hashes as a primitive array, built on first use
+    transient int[] hashArray;
+
+    // winnowed k-statement fingerprints, sorted and distinct, and the
+    // window they were selected with; null if never built
+    int[] fingerprints;
+    int fingerprintSize;
+    int fingerprintWindow;
+
+    // MinHash signature over the statement hash multiset
+    int[] minHashes;
+
+    // the comments in and just before the method, found at build time
+    ArrayList<CommentMap> commentList = new ArrayList<CommentMap>();
+
+    // set while the comments are still in the cold section of a .db file
+    transient TextCodec.ColdBlock coldBlock;
+
     public Method(int startLine) {
         methodStartLine = startLine;
     }
@@ -28,15 +52,28 @@ public class Method implements Serializable {
         return methodStartLine;
     }
 
+    public ArrayList<CommentMap> getComments() {
+        TextCodec.ColdBlock block = coldBlock;
+        if (block != null) {
+            block.load();
+        }
+        return commentList;
+    }
+
+    public void setComments(ArrayList<CommentMap> comments) {
+        commentList = comments;
+    }
+
     public int getEnd() {
         return methodEndLine;
     }
 
-    public void addStatement(int value, int startLine, int endLine,
+    public void addStatement(int value, long longValue, int startLine, int endLine,
             boolean hasMethodInvocation, int scopeLevel,
             HashSet<String> simpleNameList) {
 
         Statement statement = new Statement(value, startLine, endLine);
+        statement.longHash = longValue;
         statement.insertScope(scopeLevel);
         statement.insertNameList(simpleNameList);
         if (hasMethodInvocation) {
@@ -50,9 +87,163 @@ public class Method implements Serializable {
         return bodyStatements;
     }
 
+    public int[] getHashArray() {
+        int[] hashes = hashArray;
+        if (hashes == null || hashes.length != bodyStatements.size()) {
+            hashes = new int[bodyStatements.size()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = bodyStatements.get(i).hashNumber;
+            }
+            hashArray = hashes;
+        }
+        return hashes;
+    }
+
+    /*
+     * Winnowing: hash every run of k statements, then keep the minimum
+     * (rightmost on ties) of every window of w consecutive run hashes.
+     * Any run of w + k - 1 equal statements shared by two methods is
+     * guaranteed to give them a common fingerprint.
+     */
+    public void buildFingerprints(int k, int w) {
+        int[] hashes = getHashArray();
+        int numGrams = hashes.length - k + 1;
+        fingerprintSize = k;
+        fingerprintWindow = w;
+        if (numGrams < w) {
+            fingerprints = new int[0];
+            return;
+        }
+
+        // rolling hash of each k statement run
+        int power = 1;
+        for (int i = 0; i < k - 1; i++) {
+            power = power * 31;
+        }
+        int[] grams = new int[numGrams];
+        int rolling = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (i >= k) {
+                rolling = rolling - hashes[i - k] * power;
+            }
+            rolling = rolling * 31 + hashes[i];
+            if (i >= k - 1) {
+                grams[i - k + 1] = rolling;
+            }
+        }
+
+        // select the minimum of every window, only once per position
+        int[] selected = new int[numGrams];
+        int numSelected = 0;
+        int lastPosition = -1;
+        for (int start = 0; start + w <= numGrams; start++) {
+            int position = start;
+            for (int i = start + 1; i < start + w; i++) {
+                if (grams[i] <= grams[position]) {
+                    position = i;
+                }
+            }
+            if (position != lastPosition) {
+                selected[numSelected] = grams[position];
+                numSelected++;
+                lastPosition = position;
+            }
+        }
+
+        Arrays.sort(selected, 0, numSelected);
+        int numDistinct = 0;
+        for (int i = 0; i < numSelected; i++) {
+            if (numDistinct == 0 || selected[i] != selected[numDistinct - 1]) {
+                selected[numDistinct] = selected[i];
+                numDistinct++;
+            }
+        }
+        fingerprints = Arrays.copyOf(selected, numDistinct);
+    }
+
+    /*
+     * False only if two methods with these fingerprints cannot have an
+     * exact clone of minNumLines statements. Without comparable
+     * fingerprints, or with a span longer than minNumLines, nothing can
+     * be ruled out. A null fingerprint list means none were built.
+     */
+    public static boolean mayShareRun(IntBuffer f1, int size1, int window1,
+            IntBuffer f2, int size2, int window2, int minNumLines) {
+        if (f1 == null || f2 == null || size1 != size2 || window1 != window2 ||
+                size1 + window1 - 1 > minNumLines) {
+            return true;
+        }
+
+        // merge the two sorted fingerprint lists
+        int i = 0;
+        int j = 0;
+        int length1 = f1.limit();
+        int length2 = f2.limit();
+        while (i < length1 && j < length2) {
+            int value1 = f1.get(i);
+            int value2 = f2.get(j);
+            if (value1 == value2) {
+                return true;
+            } else if (value1 < value2) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * MinHash signature of the statement hashes, the n-th repeat of a
+     * hash counts as its own element so that repeats are not lost.
+     * A stored signature of another size is rebuilt.
+     */
+    public int[] getMinHashes(int size) {
+        int[] signature = minHashes;
+        if (signature != null && signature.length == size) {
+            return signature;
+        }
+
+        signature = new int[size];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        HashMap<Integer, Integer> occurrence = new HashMap<Integer, Integer>();
+        for (int hash : getHashArray()) {
+            Integer count = occurrence.get(hash);
+            if (count == null) {
+                count = 0;
+            }
+            occurrence.put(hash, count + 1);
+
+            int element = hash * 0x9E3779B1 + count;
+            for (int i = 0; i < size; i++) {
+                int value = mix(element ^ (i * 0x85EBCA6B + 0x7F4A7C15));
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        minHashes = signature;
+        return signature;
+    }
+
+    // murmur3 finalizer, one independent hash function per seed
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
     public int getNumStatements() {
         return bodyStatements.size();
     }
 
+    // the comments go along when the method is sent to another process
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getComments();
+        out.defaultWriteObject();
+    }
 }
 
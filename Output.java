@@ -5,24 +5,24 @@ import java.io.IOException;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
 import java.io.Serializable;
 
+import java.util.Collection;
 import java.util.Set;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Iterator;
 
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import java.util.Scanner;
 
-public class Output {
+public class Output implements CloneSink {
 
     //ArrayList<MatchGroup> matchGroupList = new ArrayList<MatchGroup>();
     int algorithmMode;
@@ -40,7 +40,25 @@ public class Output {
         matchMode = matchModeIn;
     }
 
-    HashMap<Integer,MatchGroup> matchGroupList = new HashMap<Integer,MatchGroup>();
+    HashMap<Long,MatchGroup> matchGroupList = new HashMap<Long,MatchGroup>();
+
+    // new instances are written out once this many are pending
+    private static final int FLUSH_THRESHOLD = 10000;
+
+    // set while the results are streamed to disk
+    ResultFile.Writer resultWriter;
+    LinkedHashSet<Long> dirtyGroups = new LinkedHashSet<Long>();
+    int numPending = 0;
+
+    // set when the groups are read from a result file one at a time
+    ResultFile resultFile;
+
+    // tells which .db files the comments can be taken from
+    Manifest manifest;
+
+    public void installManifest(Manifest manifestIn) {
+        manifest = manifestIn;
+    }
 
     // file coverage, start-end line
     // statement hash number, start-end
@@ -49,12 +67,12 @@ public class Output {
             String file2, int lineStart2, int lineEnd2, int length,
             ArrayList<Statement> statementRaw1, int statementStart1, int statementEnd1,
             ArrayList<Statement> statementRaw2, int statementStart2, int statementEnd2,
-            int totalHashValue) {
+            long[] statementHashes) {
         if (algorithmMode == 0) {
-            // check for hashing error during the group hash process
+            // check for hashing error, the 64-bit hashes of both fragments must agree
             boolean status = Analyze.hasHashError(
-                    statementRaw1.subList(statementStart1, statementEnd1), 
-                    statementRaw2.subList(statementStart2, statementEnd2));
+                    statementRaw1.subList(statementStart1, statementEnd1 + 1), 
+                    statementRaw2.subList(statementStart2, statementEnd2 + 1));
             if (status ==  true) {
                 return;
             }
@@ -79,21 +97,26 @@ public class Output {
             //}
         }
 
+        // the group is the one of the matched statements, in order
+        long groupKey = findGroupKey(statementHashes);
+
         boolean added = false;
         if (matchMode == 0) {
-            MatchGroup matchGroup = matchGroupList.get(totalHashValue);
+            MatchGroup matchGroup = matchGroupList.get(groupKey);
             if (matchGroup != null) {
                 boolean status1 = matchGroup.checkMatchExist(file1, lineStart1, lineEnd1, 0);
                 boolean status2 = matchGroup.checkMatchExist(file2, lineStart2, lineEnd2, 1);
                 if (status1 == true && status2 == false) {
                     // add as a clone
                     matchGroup.addMatch(1, file2, lineStart2, lineEnd2, 
-                            statementRaw2, statementStart2, statementEnd2, totalHashValue);
+                            statementRaw2, statementStart2, statementEnd2, groupKey);
+                    markPending(groupKey, 1);
                     added = true;
                 } else if (status1 == false && status2 == true) {
                     // add as a master
                     matchGroup.addMatch(0, file1, lineStart1, lineEnd1,
-                            statementRaw1, statementStart1, statementEnd1, totalHashValue);
+                            statementRaw1, statementStart1, statementEnd1, groupKey);
+                    markPending(groupKey, 1);
                     added = true;
                 } else if (status1 == true && status2 == true) {
                     added = true;
@@ -101,19 +124,20 @@ public class Output {
             } else {
                 // status 1 and 2 are false
                 if (added == false) {
-                    MatchGroup newGroup = new MatchGroup(length);
+                    MatchGroup newGroup = new MatchGroup(length, statementHashes);
 
                     newGroup.addMatch(0, file1, lineStart1, lineEnd1,
-                            statementRaw1, statementStart1, statementEnd1, totalHashValue);
+                            statementRaw1, statementStart1, statementEnd1, groupKey);
                     newGroup.addMatch(1, file2, lineStart2, lineEnd2,
-                            statementRaw2, statementStart2, statementEnd2, totalHashValue);
+                            statementRaw2, statementStart2, statementEnd2, groupKey);
 
-                    matchGroupList.put(totalHashValue, newGroup);
+                    matchGroupList.put(groupKey, newGroup);
+                    markPending(groupKey, 2);
                 }
             }
         } else {
             // full mesh
-            MatchGroup matchGroup = matchGroupList.get(totalHashValue);
+            MatchGroup matchGroup = matchGroupList.get(groupKey);
             if (matchGroup != null) {
                 boolean status1 = matchGroup.checkMatchExist(file1, lineStart1, lineEnd1, 2);
                 boolean status2 = matchGroup.checkMatchExist(file2, lineStart2, lineEnd2, 2);
@@ -121,12 +145,14 @@ public class Output {
                 if (status1 == true && status2 == false) {
                     // add as a clone
                     matchGroup.addMatch(1, file2, lineStart2, lineEnd2,
-                            statementRaw2, statementStart2, statementEnd2, totalHashValue);
+                            statementRaw2, statementStart2, statementEnd2, groupKey);
+                    markPending(groupKey, 1);
                     added = true; 
                 } else if (status1 == false && status2 == true) {
                     // add as a clone
                     matchGroup.addMatch(1, file1, lineStart1, lineEnd1,
-                            statementRaw1, statementStart1, statementEnd1, totalHashValue);
+                            statementRaw1, statementStart1, statementEnd1, groupKey);
+                    markPending(groupKey, 1);
                     added = true;
                 } else if (status1 == true && status2 == true) {
                     added = true;
@@ -134,51 +160,242 @@ public class Output {
             } else {
                 // status 1 and 2 are false
                 if (added == false) {
-                    MatchGroup newGroup = new MatchGroup(length);
+                    MatchGroup newGroup = new MatchGroup(length, statementHashes);
                 
                     newGroup.addMatch(0, file1, lineStart1, lineEnd1,
-                            statementRaw1, statementStart1, statementEnd1, totalHashValue);
+                            statementRaw1, statementStart1, statementEnd1, groupKey);
                     newGroup.addMatch(1, file2, lineStart2, lineEnd2,
-                            statementRaw2, statementStart2, statementEnd2, totalHashValue);
+                            statementRaw2, statementStart2, statementEnd2, groupKey);
 
-                    matchGroupList.put(totalHashValue, newGroup);
+                    matchGroupList.put(groupKey, newGroup);
+                    markPending(groupKey, 2);
                 }
             }
         }
     }
 
+    // add a whole clone class, the first numMaster instances are masters
+    public void addCloneClass(ArrayList<String> fileNames, 
+            ArrayList<ArrayList<Statement>> statementLists,
+            ArrayList<Integer> startIndexes, int length, int numMaster) {
+
+        ArrayList<Statement> statementRaw1 = statementLists.get(0);
+        int statementStart1 = startIndexes.get(0);
+        List<Statement> firstRange = statementRaw1.subList(statementStart1, statementStart1 + length);
+
+        // check for repetitive statements
+        if (enableRepetitive) {
+            if (Analyze.isRepetitive(firstRange) == true) {
+                return;
+            }
+        }
+
+        // require at least one method call
+        if (enableOneMethod) {
+            if (Analyze.checkNumMethods(firstRange, 1) == false) {
+                return;
+            }
+        }
+
+        long[] statementHashes = MatchGroup.getHashSequence(firstRange);
+        long groupKey = findGroupKey(statementHashes);
+
+        // build the class on its own first, the same code can show up twice
+        MatchGroup newGroup = new MatchGroup(length, statementHashes);
+        for (int i = 0; i < fileNames.size(); i++) {
+            ArrayList<Statement> statementRaw = statementLists.get(i);
+            int statementStart = startIndexes.get(i);
+            int statementEnd = statementStart + length - 1;
+
+            // the 32-bit hashes matched, leave out the instances the 64-bit ones do not
+            if (!Arrays.equals(statementHashes, MatchGroup.getHashSequence(
+                    statementRaw.subList(statementStart, statementEnd + 1)))) {
+                continue;
+            }
+            int lineStart = statementRaw.get(statementStart).startLine;
+            int lineEnd = statementRaw.get(statementEnd).endLine;
+
+            if (newGroup.checkMatchExist(fileNames.get(i), lineStart, lineEnd, 2)) {
+                continue;
+            }
+            int role = (i < numMaster) ? 0 : 1;
+            newGroup.addMatch(role, fileNames.get(i), lineStart, lineEnd,
+                    statementRaw, statementStart, statementEnd, groupKey);
+        }
+        if (newGroup.getMasterSize() == 0 || newGroup.getCloneSize() == 0) {
+            return;
+        }
+
+        MatchGroup matchGroup = matchGroupList.get(groupKey);
+        if (matchGroup == null) {
+            matchGroupList.put(groupKey, newGroup);
+        } else {
+            // merge into the existing group
+            matchGroup.addGroup(newGroup);
+        }
+        markPending(groupKey, newGroup.getMasterSize() + newGroup.getCloneSize());
+    }
+
+    /*
+     * The key of the group with the given statement hashes. Groups are
+     * found by the fingerprint of the sequence and only merged when their
+     * sequences are equal, a different sequence with the same fingerprint
+     * takes the next free key.
+     */
+    private long findGroupKey(long[] statementHashes) {
+        long key = MatchGroup.getSequenceKey(statementHashes);
+        while (true) {
+            MatchGroup group = matchGroupList.get(key);
+            if (group == null || Arrays.equals(group.statementHashes, statementHashes)) {
+                return key;
+            }
+            key++;
+        }
+    }
+
+    /*
+     * Drop every match in the given files, e.g. files changed since the
+     * results were saved. A group that moved past the key of a dropped
+     * group in findGroupKey would no longer be found, so the groups after
+     * every freed key are put back at their first free key.
+     */
+    public void removeFiles(Set<String> fileNames) {
+        ArrayList<Long> freedKeys = new ArrayList<Long>();
+        Iterator<Map.Entry<Long,MatchGroup>> it = matchGroupList.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long,MatchGroup> entry = it.next();
+            if (entry.getValue().removeFiles(fileNames) == false) {
+                freedKeys.add(entry.getKey());
+                it.remove();
+            }
+        }
+        for (Long freedKey : freedKeys) {
+            rekeyAfter(freedKey);
+        }
+    }
+
+    // the groups from freedKey + 1 up to the next free key
+    private void rekeyAfter(long freedKey) {
+        long key = freedKey + 1;
+        while (true) {
+            MatchGroup group = matchGroupList.remove(key);
+            if (group == null) {
+                return;
+            }
+            long newKey = findGroupKey(group.statementHashes);
+            group.groupKey = newKey;
+            matchGroupList.put(newKey, group);
+            key++;
+        }
+    }
+
+    // the group keys, from the result file if the results were streamed or opened
+    public Collection<Long> getGroupKeys() {
+        if (resultFile != null) {
+            return resultFile.getGroupKeys();
+        }
+        return matchGroupList.keySet();
+    }
+
+    public MatchGroup getGroup(long key) {
+        if (resultFile != null) {
+            return resultFile.loadGroup(key);
+        }
+        return matchGroupList.get(key);
+    }
+
+    // one segment per group
     public void saveResults(String path) {
-        try {
-            // Serialize file and write to file
-            FileOutputStream fout = new FileOutputStream(path);
-            ObjectOutputStream oos = new ObjectOutputStream(fout);
-            oos.writeObject(matchGroupList);
-            fout.close();
-            oos.close();
-        } catch (Exception e) {
-            System.out.println("Error while writing results\n" + e.getStackTrace());
-            System.exit(0);
+        ResultFile.Writer writer = new ResultFile.Writer(path);
+        for (Long key : matchGroupList.keySet()) {
+            MatchGroup group = matchGroupList.get(key);
+            writer.writeSegment(key, group.statementHashes, group.masterList, group.cloneList);
         }
+        writer.close(matchGroupList);
     }
 
+    // reads every group into memory, e.g. to add to the results
     public void loadResults(String path) {
-        try {
-            // Load serialized file
-            FileInputStream fin = new FileInputStream(path);
-            ObjectInputStream ois = new ObjectInputStream(fin);
-            matchGroupList = (HashMap<Integer,MatchGroup>) ois.readObject();
-            fin.close();
-            ois.close();
-        } catch (Exception e) {
-            System.out.println("Error while loading results\n" + e.getStackTrace());
-            System.exit(0);
+        ResultFile file = ResultFile.open(path);
+        matchGroupList = new HashMap<Long,MatchGroup>();
+        for (Long key : file.getGroupKeys()) {
+            matchGroupList.put(key, file.loadGroup(key));
         }
+        resultFile = null;
+    }
+
+    // only reads the index, the groups are loaded when they are used
+    public void openResults(String path) {
+        resultFile = ResultFile.open(path);
+        matchGroupList = new HashMap<Long,MatchGroup>();
+        System.out.println("Opened " + resultFile.getNumGroups() + " match groups from " + path);
+    }
+
+    /*
+     * Write the results to path while they are found. New instances are
+     * written in segments, after that they keep only their file and lines
+     * for the duplicate checks. Ends with finishResults.
+     */
+    public void streamResults(String path) {
+        resultWriter = new ResultFile.Writer(path);
+        dirtyGroups.clear();
+        numPending = 0;
+    }
+
+    private void markPending(long key, int numAdded) {
+        if (resultWriter == null) {
+            return;
+        }
+        dirtyGroups.add(key);
+        numPending = numPending + numAdded;
+        if (numPending >= FLUSH_THRESHOLD) {
+            flushResults();
+        }
+    }
+
+    private void flushResults() {
+        for (Long key : dirtyGroups) {
+            MatchGroup group = matchGroupList.get(key);
+            ArrayList<MatchInstance> masters = getUnstored(group.masterList);
+            ArrayList<MatchInstance> clones = getUnstored(group.cloneList);
+            if (masters.size() + clones.size() == 0) {
+                continue;
+            }
+            resultWriter.writeSegment(key, group.statementHashes, masters, clones);
+            for (MatchInstance matchInst : masters) {
+                matchInst.statements = null;
+            }
+            for (MatchInstance matchInst : clones) {
+                matchInst.statements = null;
+            }
+        }
+        dirtyGroups.clear();
+        numPending = 0;
+    }
+
+    // instances that still hold their statements have not been written yet
+    private static ArrayList<MatchInstance> getUnstored(HashSet<MatchInstance> list) {
+        ArrayList<MatchInstance> unstored = new ArrayList<MatchInstance>();
+        for (MatchInstance matchInst : list) {
+            if (matchInst.statements != null) {
+                unstored.add(matchInst);
+            }
+        }
+        return unstored;
+    }
+
+    // write what is left and the index, the groups are then read back from path
+    public void finishResults(String path) {
+        flushResults();
+        resultWriter.close(matchGroupList);
+        resultWriter = null;
+        openResults(path);
     }
 
     public void processOutputTerms (FrequencyMap fMap) {
 
-        for (Integer key : matchGroupList.keySet()) {
-            MatchGroup thisMatchGroup = matchGroupList.get(key);
+        for (Long key : getGroupKeys()) {
+            MatchGroup thisMatchGroup = getGroup(key);
             HashSet<String> listTerms = thisMatchGroup.dumpTerms();
 
             fMap.addInstance(listTerms);
@@ -201,12 +418,12 @@ public class Output {
 
         int numMatchesWithComment = 0;
         int matchIndex = 0;
-        for (Integer key : matchGroupList.keySet()) {
-            MatchGroup thisMatchGroup = matchGroupList.get(key);
+        for (Long key : getGroupKeys()) {
+            MatchGroup thisMatchGroup = getGroup(key);
             System.out.println("Match Group " + matchIndex + " of size " + 
                     thisMatchGroup.getMasterSize() + "+" + thisMatchGroup.getCloneSize());
             
-            thisMatchGroup.mapCode2Comment();
+            thisMatchGroup.mapCode2Comment(manifest);
             thisMatchGroup.pruneComments(similarityRange, enableSimilarity);
 
             thisMatchGroup.pruneDuplicateComments();
@@ -254,10 +471,10 @@ public class Output {
             }
 
             // search for a clone that contains all the terms
-            for (Integer key : matchGroupList.keySet()) {
-                MatchGroup thisMatchGroup = matchGroupList.get(key);
+            for (Long key : getGroupKeys()) {
+                MatchGroup thisMatchGroup = getGroup(key);
 
-                thisMatchGroup.findClones(setSplittedString);
+                thisMatchGroup.findClones(setSplittedString, manifest);
 
             }
 
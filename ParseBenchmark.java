@@ -0,0 +1,87 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Tokenizes the files of a database directory once with a parser per
+ * file and once in batches handed to the parser at once, and compares
+ * the time and the encoded texts of both, after one untimed pass over
+ * the files. Nothing is written to disk.
+ *
+ * usage: java ParseBenchmark <database dir> [batch size] [min lines]
+ */
+public class ParseBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: java ParseBenchmark <database dir> [batch size] [min lines]");
+            System.exit(0);
+        }
+        String databaseDir = args[0];
+        int batchSize = 64;
+        if (args.length > 1) {
+            batchSize = Integer.parseInt(args[1]);
+        }
+        int minNumLines = 3;
+        if (args.length > 2) {
+            minNumLines = Integer.parseInt(args[2]);
+        }
+
+        List<String> fileList = Database.getFileList(databaseDir);
+        System.out.println("Tokenizing " + fileList.size() + " files in " + databaseDir);
+
+        // untimed, so that neither mode pays for the warm-up
+        for (String absPath : fileList) {
+            Parser.parseAST2Tokens(absPath, minNumLines, false);
+        }
+
+        long start = System.nanoTime();
+        ArrayList<byte[]> single = new ArrayList<byte[]>();
+        for (String absPath : fileList) {
+            Tokenizer token = Parser.parseAST2Tokens(absPath, minNumLines, false);
+            single.add(encode(absPath, databaseDir, token, minNumLines));
+        }
+        long singleTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ArrayList<byte[]> batched = new ArrayList<byte[]>();
+        for (int from = 0; from < fileList.size(); from = from + batchSize) {
+            List<String> batch = fileList.subList(from, Math.min(from + batchSize, fileList.size()));
+            Tokenizer[] tokens = Parser.parseAST2Tokens(batch, minNumLines, false);
+            for (int i = 0; i < tokens.length; i++) {
+                batched.add(encode(batch.get(i), databaseDir, tokens[i], minNumLines));
+            }
+        }
+        long batchTime = System.nanoTime() - start;
+
+        int numDifferent = 0;
+        for (int i = 0; i < fileList.size(); i++) {
+            if (!Arrays.equals(single.get(i), batched.get(i))) {
+                System.out.println("Different output for " + fileList.get(i));
+                numDifferent++;
+            }
+        }
+
+        System.out.format("%-10s %10s%n", "mode", "ms");
+        System.out.format("%-10s %10d%n", "per file", singleTime / 1000000);
+        System.out.format("%-10s %10d%n", "batch " + batchSize, batchTime / 1000000);
+        System.out.println(numDifferent + " of " + fileList.size() + " files differ");
+    }
+
+    // the text as it would go into its .db file, null if the file could not be parsed
+    private static byte[] encode(String absPath, String databaseDir, Tokenizer token,
+            int minNumLines) throws IOException {
+        if (token == null) {
+            return null;
+        }
+        Text txt = new Text(absPath, databaseDir);
+        txt.tokenize(token, minNumLines, new ArrayList<String>(), databaseDir);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        TextCodec.write(txt, new DataOutputStream(bos));
+        return bos.toByteArray();
+    }
+}
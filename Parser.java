@@ -16,10 +16,11 @@ import java.util.HashSet;
 
 class Parser {
 
-    private static ArrayList<TypeInfo> variableMap = 
+    // state of a single parse, so that files can be parsed concurrently
+    private ArrayList<TypeInfo> variableMap = 
         new ArrayList<TypeInfo>();
  
-    private static int scopeLevel = 0;
+    private int scopeLevel = 0;
 
     static class TypeInfo {
         public String varName;
@@ -57,7 +58,7 @@ class Parser {
     }
 
     
-    private static void clearLocalVariables() {
+    private void clearLocalVariables() {
         for (int i = variableMap.size()-1; i >= 0; i--) {
 
             if (variableMap.get(i).level == scopeLevel) {
@@ -69,6 +70,61 @@ class Parser {
 
 	/* Convert files that are in String format to AST */
     public static Tokenizer parseAST2Tokens(String absPath, int minNumLines, boolean debug) {
+        return new Parser().parse(absPath, minNumLines, debug);
+    }
+
+    /*
+     * Convert a batch of files with one parser, the parser setup and the
+     * name environment are shared by the batch. One tokenizer per file in
+     * the given order, null for the files that could not be parsed.
+     */
+    public static Tokenizer[] parseAST2Tokens(final List<String> absPaths, final int minNumLines,
+            final boolean debug) {
+        final Tokenizer[] tokens = new Tokenizer[absPaths.size()];
+        final HashMap<String, Integer> fileIndex = new HashMap<String, Integer>();
+        String[] encodings = new String[absPaths.size()];
+        for (int i = 0; i < absPaths.size(); i++) {
+            fileIndex.put(absPaths.get(i), i);
+            encodings[i] = "UTF-8";
+        }
+        final boolean[] accepted = new boolean[absPaths.size()];
+
+        ASTParser parser = newParser();
+        try {
+            parser.createASTs(absPaths.toArray(new String[absPaths.size()]), encodings, new String[0],
+                    new FileASTRequestor() {
+                        public void acceptAST(String sourceFilePath, CompilationUnit unit) {
+                            Integer index = fileIndex.get(sourceFilePath);
+                            if (index == null) {
+                                return;
+                            }
+                            accepted[index] = true;
+                            // the comments are read from the same characters the parser saw
+                            char[] content;
+                            try {
+                                content = fileToString(sourceFilePath).toCharArray();
+                            } catch (IOException e) {
+                                System.out.println("\nError while reading " + sourceFilePath + "\n" + e);
+                                return;
+                            }
+                            tokens[index] = new Parser().tokenize(unit, content,
+                                    sourceFilePath, minNumLines, debug);
+                        }
+                    }, null);
+        } catch (Exception e) {
+            System.out.println("\nError while executing batch, parsing the files one by one : " + e.toString());
+        }
+
+        // files the batch did not get to
+        for (int i = 0; i < absPaths.size(); i++) {
+            if (accepted[i] == false) {
+                tokens[i] = parseAST2Tokens(absPaths.get(i), minNumLines, debug);
+            }
+        }
+        return tokens;
+    }
+
+    private Tokenizer parse(String absPath, int minNumLines, boolean debug) {
         String source = "";
         try {
             source = fileToString(absPath);
@@ -76,12 +132,26 @@ class Parser {
             e.printStackTrace();
         }
 
-        ASTParser parser = ASTParser.newParser(AST.JLS4);
-
-        parser.setKind(ASTParser.K_COMPILATION_UNIT);
+        ASTParser parser = newParser();
         char[] content = source.toCharArray();
         parser.setSource(content);
         parser.setUnitName(absPath);
+
+        CompilationUnit unit;
+        try {
+            unit = (CompilationUnit) parser.createAST(null);
+        } catch (Exception e) {
+            System.out.println("\nError while executing compilation unit : " + e.toString());
+            return null;
+        }
+        return tokenize(unit, content, absPath, minNumLines, debug);
+    }
+
+    // the settings of both the single file and the batch parser
+    private static ASTParser newParser() {
+        ASTParser parser = ASTParser.newParser(AST.JLS4);
+
+        parser.setKind(ASTParser.K_COMPILATION_UNIT);
         Map<String, String> options = JavaCore.getOptions();
         options.put(JavaCore.COMPILER_COMPLIANCE, JavaCore.VERSION_1_7);
         options.put(JavaCore.COMPILER_CODEGEN_TARGET_PLATFORM,
@@ -97,11 +167,12 @@ class Parser {
         parser.setResolveBindings(false);
         parser.setCompilerOptions(options);
         parser.setStatementsRecovery(true);
+        return parser;
+    }
 
-        //System.out.println(absPath);
-
+    private Tokenizer tokenize(final CompilationUnit unit, char[] content, String absPath,
+            int minNumLines, boolean debug) {
         try {
-            final CompilationUnit unit = (CompilationUnit) parser.createAST(null);
             final AST ast = unit.getAST();
 
             // Process the main body
@@ -1134,6 +1205,9 @@ class Parser {
                 e.printStackTrace();
                 System.exit(0);
             }
+
+            // the comments come from the same tree, no second parse needed
+            tk.setComments(CommentParser.collectComments(unit, content));
             return tk;
 
         } catch (Exception e) {
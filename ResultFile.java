@@ -0,0 +1,376 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Segmented result file. Every segment holds instances of one match
+ * group together with the statement lists they point into, a group can
+ * be spread over several segments when it is written while the
+ * comparison runs. The index at the end of the file has the offset and
+ * size of every segment by group, so that a single group can be read
+ * without loading the others. The header points to the index. With
+ * compression every segment is a compressed block of its own. Groups are
+ * keyed by the 64-bit fingerprint of their statement hashes, which every
+ * segment repeats so that a group read on its own can be added to.
+ */
+public class ResultFile {
+
+    private static final int MAGIC = 0x43524553;   // "CRES"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 17;
+
+    // file flags
+    private static final int COMPRESSED = 1;
+
+    // compress the files written from now on, both kinds can be read
+    public static boolean compress = false;
+
+    private static final int MASTER = 0;
+    private static final int CLONE = 1;
+
+    static class Segment {
+        long offset;
+        int length;
+
+        Segment(long offsetIn, int lengthIn) {
+            offset = offsetIn;
+            length = lengthIn;
+        }
+    }
+
+    static class GroupEntry {
+        int matchLength;
+        ArrayList<Segment> segmentList = new ArrayList<Segment>();
+    }
+
+    String filePath;
+    boolean compressed;
+
+    // in the order the groups were saved
+    LinkedHashMap<Long, GroupEntry> groupIndex = new LinkedHashMap<Long, GroupEntry>();
+
+    private ResultFile(String filePathIn) {
+        filePath = filePathIn;
+    }
+
+    // reads only the header and the index
+    public static ResultFile open(String filePath) {
+        if (!new File(filePath).isFile()) {
+            System.out.println("Result file " + filePath + " does not exist");
+            System.exit(0);
+        }
+
+        ResultFile resultFile = new ResultFile(filePath);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(filePath, "r");
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                System.out.println("Invalid result file " + filePath + ", export the results again");
+                System.exit(0);
+            }
+            long indexOffset = raf.readLong();
+            resultFile.compressed = (raf.readByte() & COMPRESSED) != 0;
+            if (indexOffset < HEADER_SIZE || indexOffset > raf.length()) {
+                System.out.println("Incomplete result file " + filePath + ", export the results again");
+                System.exit(0);
+            }
+
+            byte[] index = new byte[(int) (raf.length() - indexOffset)];
+            raf.seek(indexOffset);
+            raf.readFully(index);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(index));
+            int numGroups = TextCodec.readVarInt(dis);
+            for (int g = 0; g < numGroups; g++) {
+                long key = dis.readLong();
+                GroupEntry entry = new GroupEntry();
+                entry.matchLength = TextCodec.readVarInt(dis);
+                int numSegments = TextCodec.readVarInt(dis);
+                for (int s = 0; s < numSegments; s++) {
+                    entry.segmentList.add(new Segment(dis.readLong(), dis.readInt()));
+                }
+                resultFile.groupIndex.put(key, entry);
+            }
+        } catch (IOException e) {
+            System.out.println("Error while loading results\n" + e);
+            System.exit(0);
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+        return resultFile;
+    }
+
+    public Set<Long> getGroupKeys() {
+        return groupIndex.keySet();
+    }
+
+    public int getNumGroups() {
+        return groupIndex.size();
+    }
+
+    // all the segments of one group, null if there is no such group
+    public MatchGroup loadGroup(long key) {
+        GroupEntry entry = groupIndex.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        MatchGroup group = new MatchGroup(entry.matchLength);
+        group.groupKey = key;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(filePath, "r");
+            for (Segment segment : entry.segmentList) {
+                byte[] data = new byte[segment.length];
+                raf.seek(segment.offset);
+                raf.readFully(data);
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+                if (compressed) {
+                    dis = Compression.openBlock(dis);
+                }
+                readSegment(dis, key, group);
+            }
+        } catch (IOException e) {
+            System.out.println("Error while loading results\n" + e);
+            System.exit(0);
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+        return group;
+    }
+
+    private static void readSegment(DataInputStream dis, long key, MatchGroup group) throws IOException {
+        if (dis.readLong() != key) {
+            throw new IOException("segment does not belong to group " + key);
+        }
+        long[] statementHashes = new long[TextCodec.readVarInt(dis)];
+        for (int i = 0; i < statementHashes.length; i++) {
+            statementHashes[i] = dis.readLong();
+        }
+        if (group.statementHashes == null) {
+            group.statementHashes = statementHashes;
+        }
+
+        String[] stringTable = TextCodec.readStringTable(dis);
+        int numLists = TextCodec.readVarInt(dis);
+        ArrayList<ArrayList<Statement>> statementLists = new ArrayList<ArrayList<Statement>>(numLists);
+        for (int i = 0; i < numLists; i++) {
+            ArrayList<Statement> statementList = new ArrayList<Statement>();
+            TextCodec.readStatements(statementList, 0, stringTable, dis);
+            statementLists.add(statementList);
+        }
+
+        int numInstances = TextCodec.readVarInt(dis);
+        for (int i = 0; i < numInstances; i++) {
+            int role = dis.readByte();
+            String fileName = dis.readUTF();
+            int startLine = TextCodec.readVarInt(dis);
+            int endLine = startLine + TextCodec.readSignedVarInt(dis);
+            ArrayList<Statement> statementList = statementLists.get(TextCodec.readVarInt(dis));
+            int startIndex = TextCodec.readVarInt(dis);
+            int endIndex = TextCodec.readVarInt(dis);
+            MatchInstance matchInst = new MatchInstance(fileName, startLine, endLine,
+                    statementList, startIndex, endIndex);
+            if (role == MASTER) {
+                group.masterList.add(matchInst);
+            } else {
+                group.cloneList.add(matchInst);
+            }
+        }
+    }
+
+    /*
+     * Writes segments as they come, the index is written on close. The
+     * segments go to a temporary file next to filePath, which replaces
+     * the old results only once it is complete.
+     */
+    public static class Writer {
+
+        String filePath;
+        String tempPath;
+        boolean compressed;
+        RandomAccessFile raf;
+
+        HashMap<Long, ArrayList<Segment>> segmentMap = new HashMap<Long, ArrayList<Segment>>();
+
+        public Writer(String filePathIn) {
+            filePath = filePathIn;
+            tempPath = filePath + ".tmp";
+            compressed = compress;
+            try {
+                File f = new File(tempPath);
+                if (f.exists() && !f.delete()) {
+                    throw new IOException("cannot replace " + tempPath);
+                }
+                raf = new RandomAccessFile(tempPath, "rw");
+                // the index offset stays 0 until the file is complete
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(0);
+                raf.writeByte(compressed ? COMPRESSED : 0);
+            } catch (IOException e) {
+                System.out.println("Error while writing results\n" + e);
+                System.exit(0);
+            }
+        }
+
+        /*
+         * One segment of group key with the given instances. Instances of
+         * the same method share their statement list in the segment.
+         */
+        public void writeSegment(long key, long[] statementHashes,
+                Collection<MatchInstance> masters, Collection<MatchInstance> clones) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            try {
+                dos.writeLong(key);
+                TextCodec.writeVarInt(dos, statementHashes.length);
+                for (long hash : statementHashes) {
+                    dos.writeLong(hash);
+                }
+
+                IdentityHashMap<ArrayList<Statement>, Integer> listIndex =
+                    new IdentityHashMap<ArrayList<Statement>, Integer>();
+                ArrayList<ArrayList<Statement>> statementLists = new ArrayList<ArrayList<Statement>>();
+                HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+                ArrayList<String> stringTable = new ArrayList<String>();
+                addStatementLists(masters, listIndex, statementLists, stringIndex, stringTable);
+                addStatementLists(clones, listIndex, statementLists, stringIndex, stringTable);
+
+                TextCodec.writeStringTable(stringTable, dos);
+                TextCodec.writeVarInt(dos, statementLists.size());
+                for (ArrayList<Statement> statementList : statementLists) {
+                    TextCodec.writeStatements(statementList, 0, stringIndex, dos);
+                }
+
+                TextCodec.writeVarInt(dos, masters.size() + clones.size());
+                writeInstances(MASTER, masters, listIndex, dos);
+                writeInstances(CLONE, clones, listIndex, dos);
+                dos.flush();
+
+                byte[] data = bos.toByteArray();
+                if (compressed) {
+                    ByteArrayOutputStream block = new ByteArrayOutputStream();
+                    DataOutputStream blockOut = new DataOutputStream(block);
+                    Compression.writeBlock(blockOut, data);
+                    blockOut.flush();
+                    data = block.toByteArray();
+                }
+                long offset = raf.getFilePointer();
+                raf.write(data);
+                ArrayList<Segment> segmentList = segmentMap.get(key);
+                if (segmentList == null) {
+                    segmentList = new ArrayList<Segment>();
+                    segmentMap.put(key, segmentList);
+                }
+                segmentList.add(new Segment(offset, data.length));
+            } catch (IOException e) {
+                System.out.println("Error while writing results\n" + e);
+                System.exit(0);
+            }
+        }
+
+        private static void addStatementLists(Collection<MatchInstance> instances,
+                IdentityHashMap<ArrayList<Statement>, Integer> listIndex,
+                ArrayList<ArrayList<Statement>> statementLists,
+                HashMap<String, Integer> stringIndex, ArrayList<String> stringTable) {
+            for (MatchInstance matchInst : instances) {
+                if (!listIndex.containsKey(matchInst.statements)) {
+                    listIndex.put(matchInst.statements, statementLists.size());
+                    statementLists.add(matchInst.statements);
+                    TextCodec.collectNames(matchInst.statements, stringIndex, stringTable);
+                }
+            }
+        }
+
+        private static void writeInstances(int role, Collection<MatchInstance> instances,
+                IdentityHashMap<ArrayList<Statement>, Integer> listIndex,
+                DataOutputStream dos) throws IOException {
+            for (MatchInstance matchInst : instances) {
+                dos.writeByte(role);
+                dos.writeUTF(matchInst.fileName);
+                TextCodec.writeVarInt(dos, matchInst.startLine);
+                TextCodec.writeSignedVarInt(dos, matchInst.endLine - matchInst.startLine);
+                TextCodec.writeVarInt(dos, listIndex.get(matchInst.statements));
+                TextCodec.writeVarInt(dos, matchInst.startIndex);
+                TextCodec.writeVarInt(dos, matchInst.endIndex);
+            }
+        }
+
+        /*
+         * Write the index in the order of groupList, point the header to
+         * it and move the complete file over the old results.
+         */
+        public void close(Map<Long, MatchGroup> groupList) {
+            try {
+                long indexOffset = raf.getFilePointer();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bos);
+                TextCodec.writeVarInt(dos, groupList.size());
+                for (Long key : groupList.keySet()) {
+                    MatchGroup group = groupList.get(key);
+                    ArrayList<Segment> segmentList = segmentMap.get(key);
+                    if (segmentList == null) {
+                        segmentList = new ArrayList<Segment>();
+                    }
+                    dos.writeLong(key);
+                    TextCodec.writeVarInt(dos, group.matchLength);
+                    TextCodec.writeVarInt(dos, segmentList.size());
+                    for (Segment segment : segmentList) {
+                        dos.writeLong(segment.offset);
+                        dos.writeInt(segment.length);
+                    }
+                }
+                dos.flush();
+                raf.write(bos.toByteArray());
+
+                raf.seek(8);
+                raf.writeLong(indexOffset);
+            } catch (IOException e) {
+                System.out.println("Error while writing results\n" + e);
+                System.exit(0);
+            } finally {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    System.out.println("Error while closing stream\n" + e);
+                }
+            }
+
+            try {
+                Files.move(Paths.get(tempPath), Paths.get(filePath),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Error while replacing " + filePath + "\n" + e);
+                System.exit(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Sharded mesh comparison over several local worker JVMs.
+ * The blocks of compareMeshed are cut into shard blocks, small enough
+ * to give every worker several shards, and shard (a, b) with a <= b
+ * compares the files of shard block a against those of shard block b.
+ * Workers claim shards through the shard directory and write the
+ * clones of each shard to its own record file, one segment per row.
+ * The merge replays the segments of a row from (a, a), (a, a + 1), ...
+ * first for the pairs inside a block of compareMeshed and then for the
+ * pairs between the blocks, one pair of blocks at a time, which is the
+ * order of a single process run, so the merged output is the same.
+ */
+public class ShardCoordinator {
+
+    private static final int MAGIC = 0x4A4F4253;   // "JOBS"
+    private static final int VERSION = 4;
+
+    private static final String JOB_FILE = "job.tmp";
+    private static final String MANIFEST_FILE = "manifest.tmp";
+
+    Compare comp;
+
+    int numWorkers;
+
+    String workerHeap;
+
+    String shardDir;
+
+    public ShardCoordinator(Compare compIn, int numWorkersIn, String workerHeapIn) {
+        comp = compIn;
+        numWorkers = numWorkersIn;
+        workerHeap = workerHeapIn;
+        shardDir = comp.databaseDir + "shards/";
+    }
+
+    // about two shard blocks per worker, a shard block never spans two blocks
+    private static int getShardBlockSize(int numFiles, int blockSize, int numWorkers) {
+        int shardBlockSize = (numFiles + 2 * numWorkers - 1) / (2 * numWorkers);
+        return Math.max(1, Math.min(blockSize, shardBlockSize));
+    }
+
+    // the first file of every shard block, followed by numFiles
+    private static int[] getShardBlocks(int numFiles, int blockSize, int shardBlockSize) {
+        ArrayList<Integer> startList = new ArrayList<Integer>();
+        for (int i = 0; i < numFiles; i = i + blockSize) {
+            int nextMark = Math.min(i + blockSize, numFiles);
+            for (int j = i; j < nextMark; j = j + shardBlockSize) {
+                startList.add(j);
+            }
+        }
+        int[] starts = new int[startList.size() + 1];
+        for (int a = 0; a < startList.size(); a++) {
+            starts[a] = startList.get(a);
+        }
+        starts[startList.size()] = numFiles;
+        return starts;
+    }
+
+    private static String getShardPath(String dir, int a, int b, String extension) {
+        return dir + "shard-" + a + "-" + b + extension;
+    }
+
+    public void compareMeshed(Output result, int mode, int gapSize, int blockSize) {
+        int numFiles = comp.databasePaths.size();
+        int shardBlockSize = getShardBlockSize(numFiles, blockSize, numWorkers);
+        int[] starts = getShardBlocks(numFiles, blockSize, shardBlockSize);
+        int numShardBlocks = starts.length - 1;
+
+        System.out.println("\nComparing for " + numFiles + " files in " +
+                (numShardBlocks * (numShardBlocks + 1) / 2) + " shards on " + numWorkers + " workers");
+
+        prepareShardDir();
+        writeJob(mode, gapSize, blockSize, shardBlockSize);
+        if (comp.manifest != null) {
+            comp.manifest.save(shardDir + MANIFEST_FILE);
+        }
+
+        // start the workers on this host, with the same class path
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        ArrayList<Process> workerList = new ArrayList<Process>();
+        try {
+            for (int w = 0; w < numWorkers; w++) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + workerHeap,
+                        "-cp", classPath, "CloneDigger", "-worker", shardDir);
+                builder.redirectErrorStream(true);
+                builder.redirectOutput(new File(shardDir + "worker-" + w + ".log"));
+                workerList.add(builder.start());
+            }
+            for (int w = 0; w < numWorkers; w++) {
+                int exitValue = workerList.get(w).waitFor();
+                if (exitValue != 0) {
+                    System.out.println("Worker " + w + " failed, see " + shardDir + "worker-" + w + ".log");
+                    System.exit(0);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error while starting workers\n" + e);
+            System.exit(0);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while waiting for workers\n" + e);
+            System.exit(0);
+        }
+
+        // merge the shards in the order of a single process run, one shard row at a time
+        System.out.println("Merging shards");
+        for (int a = 0; a < numShardBlocks; a++) {
+            int blockEnd = Math.min((starts[a] / blockSize + 1) * blockSize, numFiles);
+            replayRow(result, a, starts[a], blockEnd, starts);
+        }
+        for (int i = 0; i < numFiles; i = i + blockSize) {
+            for (int l = i + blockSize; l < numFiles; l = l + blockSize) {
+                for (int a = 0; a < numShardBlocks; a++) {
+                    if (starts[a] >= i && starts[a] < i + blockSize) {
+                        replayRow(result, a, l, Math.min(l + blockSize, numFiles), starts);
+                    }
+                }
+            }
+        }
+        System.out.println("");
+    }
+
+    // the segments of the rows of shard block a, for the columns in [from, to)
+    private void replayRow(Output result, int a, int from, int to, int[] starts) {
+        ArrayList<CloneBuffer[]> shardList = new ArrayList<CloneBuffer[]>();
+        for (int b = a; b < starts.length - 1; b++) {
+            if (starts[b] >= from && starts[b] < to) {
+                shardList.add(readShard(getShardPath(shardDir, a, b, ".buf")));
+            }
+        }
+        for (int row = 0; row < starts[a + 1] - starts[a]; row++) {
+            for (CloneBuffer[] segments : shardList) {
+                segments[row].replay(result);
+            }
+        }
+    }
+
+    // remove the files of a previous run, the directory is only used for shards
+    private void prepareShardDir() {
+        File dir = new File(shardDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            System.out.println("Cannot create shard directory " + shardDir);
+            System.exit(0);
+        }
+        File[] fileList = dir.listFiles();
+        for (File f : fileList) {
+            String name = f.getName();
+            if (name.startsWith("shard-") || name.startsWith("worker-") ||
+                    name.equals(JOB_FILE) || name.equals(MANIFEST_FILE)) {
+                f.delete();
+            }
+        }
+    }
+
+    private void writeJob(int mode, int gapSize, int blockSize, int shardBlockSize) {
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(shardDir + JOB_FILE)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeUTF(comp.databaseDir);
+            dos.writeInt(comp.minNumLines);
+            dos.writeInt(mode);
+            dos.writeInt(gapSize);
+            dos.writeInt(blockSize);
+            dos.writeInt(shardBlockSize);
+            dos.writeInt(Text.fingerprintSize);
+            dos.writeInt(Text.minHashSize);
+            dos.writeBoolean(comp.corpusStore != null);
+            dos.writeInt(comp.textCache == null ? 0 : (int) (comp.textCache.capacity >> 20));
+            dos.writeInt(comp.databasePaths.size());
+            for (String path : comp.databasePaths) {
+                dos.writeUTF(path);
+            }
+        } catch (IOException e) {
+            System.out.println("Error while writing shard job\n" + e);
+            System.exit(0);
+        } finally {
+            try {
+                if (dos != null) {
+                    dos.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+
+    private static CloneBuffer[] readShard(String filePath) {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+            return (CloneBuffer[]) ois.readObject();
+        } catch (Exception e) {
+            System.out.println("Error while loading shard " + filePath + "\n" + e);
+            System.exit(0);
+            return null;
+        } finally {
+            try {
+                if (ois != null) {
+                    ois.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+    }
+
+    // write to a temporary file first so that a shard file is always complete
+    private static void writeShard(String dir, int a, int b, CloneBuffer[] rowBuffers) {
+        String tempPath = getShardPath(dir, a, b, ".part");
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath)));
+            oos.writeObject(rowBuffers);
+        } catch (IOException e) {
+            System.out.println("Error while writing shard " + a + "-" + b + "\n" + e);
+            System.exit(1);
+        } finally {
+            try {
+                if (oos != null) {
+                    oos.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+        if (!new File(tempPath).renameTo(new File(getShardPath(dir, a, b, ".buf")))) {
+            System.out.println("Cannot rename shard " + a + "-" + b);
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Entry point of a worker process: read the job, then claim and run
+     * shards until none is left. A shard is claimed by creating its
+     * claim file, which only one process can do.
+     */
+    public static void runWorker(String dir) {
+        DataInputStream dis = null;
+        Compare comp;
+        int mode, gapSize, blockSize, shardBlockSize;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(dir + JOB_FILE)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                System.out.println("Invalid shard job in " + dir);
+                System.exit(1);
+            }
+            String databaseDir = dis.readUTF();
+            int minNumLines = dis.readInt();
+            mode = dis.readInt();
+            gapSize = dis.readInt();
+            blockSize = dis.readInt();
+            shardBlockSize = dis.readInt();
+            Text.fingerprintSize = dis.readInt();
+            Text.minHashSize = dis.readInt();
+            boolean useStore = dis.readBoolean();
+            int cacheSize = dis.readInt();
+            int numFiles = dis.readInt();
+            List<String> fileList = new ArrayList<String>();
+            for (int i = 0; i < numFiles; i++) {
+                fileList.add(dis.readUTF());
+            }
+
+            comp = new Compare(minNumLines, databaseDir);
+            comp.installTextFiles(fileList);
+            comp.installTextCache(cacheSize);
+            Manifest manifest = Manifest.load(dir + MANIFEST_FILE);
+            comp.installManifest(manifest);
+            if (useStore && manifest != null) {
+                comp.installCorpusStore(CorpusStore.open(databaseDir + CorpusStore.FILE_NAME,
+                        manifest, databaseDir, minNumLines));
+            }
+        } catch (IOException e) {
+            System.out.println("Error while reading shard job\n" + e);
+            System.exit(1);
+            return;
+        } finally {
+            try {
+                if (dis != null) {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing stream\n" + e);
+            }
+        }
+
+        int numFiles = comp.databasePaths.size();
+        int[] starts = getShardBlocks(numFiles, blockSize, shardBlockSize);
+        for (int a = 0; a < starts.length - 1; a++) {
+            for (int b = a; b < starts.length - 1; b++) {
+                try {
+                    if (!new File(getShardPath(dir, a, b, ".claim")).createNewFile()) {
+                        // taken by another worker
+                        continue;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error while claiming shard " + a + "-" + b + "\n" + e);
+                    System.exit(1);
+                }
+
+                System.out.println("Shard " + a + "-" + b);
+                CloneBuffer[] rowBuffers = compareShard(comp, starts[a], starts[a + 1],
+                        starts[b], starts[b + 1], blockSize, mode, gapSize);
+                writeShard(dir, a, b, rowBuffers);
+            }
+        }
+    }
+
+    /*
+     * The files [from1, to1) against the files [from2, to2), each row
+     * only against the files after it. As in compareMeshed, the pairs
+     * between two blocks skip the files the manifest rules out.
+     */
+    static CloneBuffer[] compareShard(Compare comp, int from1, int to1, int from2, int to2,
+            int blockSize, int mode, int gapSize) {
+        boolean sameBlock = from1 / blockSize == from2 / blockSize;
+        ArrayList<Text> rowBlock = comp.loadCachedBlock(from1, to1, null);
+        ArrayList<Text> columnBlock = rowBlock;
+        if (from2 != from1) {
+            columnBlock = comp.loadCachedBlock(from2, to2, sameBlock ? null : rowBlock);
+        }
+
+        CloneBuffer[] rowBuffers = new CloneBuffer[rowBlock.size()];
+        for (int j = 0; j < rowBlock.size(); j++) {
+            rowBuffers[j] = new CloneBuffer();
+            Text text1 = rowBlock.get(j);
+            for (int k = Math.max(0, from1 + j + 1 - from2); k < columnBlock.size(); k++) {
+                Text text2 = columnBlock.get(k);
+                if (!sameBlock && (text2 == null || !comp.mayMatch(text1, from2 + k))) {
+                    continue;
+                }
+                comp.textCompare(text1, text2, mode, gapSize, rowBuffers[j]);
+            }
+        }
+        return rowBuffers;
+    }
+}
@@ -1,3 +1,5 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import java.util.ArrayList;
@@ -12,10 +14,16 @@ public class Statement implements Serializable {
     public int hashNumber;
     public int scopeLevel;
 
+    // 64-bit hash of the same tokens, to verify matches of hashNumber
+    public long longHash;
+
     public boolean hasMethodInvocation = false;
 
     public HashSet<String> nameList;
 
+    // set while the name list is still in the cold section of a .db file
+    transient TextCodec.ColdBlock coldBlock;
+
     public Statement(int value, int sLine, int eLine) {
         startLine = sLine;
         endLine = eLine;
@@ -23,6 +31,10 @@ public class Statement implements Serializable {
     }
 
     public HashSet<String> getNameList() {
+        TextCodec.ColdBlock block = coldBlock;
+        if (block != null) {
+            block.load();
+        }
         return nameList;
     }
 
@@ -41,4 +53,10 @@ public class Statement implements Serializable {
     public boolean hasMethodInvocation() {
         return hasMethodInvocation;
     }
+
+    // the name list goes along when the statement is sent to another process
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getNameList();
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,69 @@
+import java.nio.IntBuffer;
+
+import java.util.ArrayList;
+
+/*
+ * A database text backed by the corpus store. Hashes and fingerprints
+ * are views into the mapped columns, the statement objects are only
+ * read from the .db file when a method or its statements are needed.
+ */
+public class StoreText extends Text {
+
+    CorpusStore store;
+    int fileIndex;
+    int firstMethod;
+    int numMethods;
+
+    IntBuffer[] hashViews;
+
+    // the deserialized .db file, loaded on first use
+    Text cold;
+
+    public StoreText(CorpusStore storeIn, int fileIndexIn) {
+        super(storeIn.fileList.get(fileIndexIn), storeIn.databaseDir);
+        store = storeIn;
+        fileIndex = fileIndexIn;
+        firstMethod = store.getFirstMethod(fileIndex);
+        numMethods = store.getNumMethods(fileIndex);
+        hashViews = new IntBuffer[numMethods];
+    }
+
+    private synchronized Text getCold() {
+        if (cold == null) {
+            cold = Database.loadSingleFile(store.fileList.get(fileIndex), store.databaseDir,
+                    store.minNumLines, false);
+        }
+        return cold;
+    }
+
+    public int getNumMethods() {
+        return numMethods;
+    }
+
+    public Method getMethod(int i) {
+        return getCold().getMethod(i);
+    }
+
+    public ArrayList<Statement> getRawStatements(int index) {
+        return getCold().getRawStatements(index);
+    }
+
+    public IntBuffer getHashes(int i) {
+        if (hashViews[i] == null) {
+            hashViews[i] = store.getHashes(firstMethod + i);
+        }
+        return hashViews[i].duplicate();
+    }
+
+    public IntBuffer getFingerprints(int i) {
+        return store.getFingerprints(firstMethod + i);
+    }
+
+    public int getFingerprintSize(int i) {
+        return store.getFingerprintSize(firstMethod + i);
+    }
+
+    public int getFingerprintWindow(int i) {
+        return store.getFingerprintWindow(firstMethod + i);
+    }
+}
@@ -0,0 +1,490 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Clone detection in one pass over the whole corpus (matchAlgorithm 2).
+ *
+ * The statement hashes of every method are joined into one integer text,
+ * each method followed by a unique separator. A suffix array and LCP
+ * array are built over it, and every maximal repeat of at least
+ * minNumLines statements is reported as one clone class. The separators
+ * are unique, so a repeat never crosses a method boundary.
+ */
+public class SuffixArrayMatcher {
+
+    private static final int NONE = -2;
+    private static final int DIVERSE = -1;
+
+    int minNumLines;
+
+    String databaseDir;
+
+    // the joined text, hashes are mapped to ranks and separators come last
+    int[] text;
+    int textSize = 0;
+    int separatorBase;
+
+    // per method: file index, method index inside the file, start offset in text
+    int[] methodFile;
+    int[] methodIndex;
+    int[] methodOffset;
+    int numMethods = 0;
+
+    // files before this index are project files (between mode)
+    int numProjectFiles = 0;
+
+    public SuffixArrayMatcher(int minNumLinesIn, String databaseDirIn) {
+        minNumLines = minNumLinesIn;
+        databaseDir = databaseDirIn;
+        text = new int[1024];
+        methodFile = new int[256];
+        methodIndex = new int[256];
+        methodOffset = new int[256];
+    }
+
+    // full mesh: classes must span at least two files
+    public void matchMeshed(List<String> filePaths, Output output) {
+
+        System.out.println("\nJoining the statements of " + filePaths.size() + " files");
+        for (int i = 0; i < filePaths.size(); i++) {
+            Text txt = Database.loadSingleFile(filePaths.get(i), databaseDir, minNumLines, false);
+            addText(i, txt);
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+
+        ArrayList<int[]> classList = findCloneClasses();
+
+        // statement lists of the methods that are part of a class
+        HashMap<Integer, ArrayList<Statement>> statementMap = new HashMap<Integer, ArrayList<Statement>>();
+        HashMap<Integer, String> fileNameMap = new HashMap<Integer, String>();
+        int[] fileNeeded = filesOf(classList);
+        for (int fileIdx : fileNeeded) {
+            Text txt = Database.loadSingleFile(filePaths.get(fileIdx), databaseDir, minNumLines, false);
+            collectStatements(fileIdx, txt, statementMap, fileNameMap);
+        }
+
+        report(classList, statementMap, fileNameMap, output);
+    }
+
+    // project against database: classes must contain both sides
+    public void matchBetween(ArrayList<Text> project, List<String> databasePaths, Output output) {
+
+        System.out.println("\nJoining the statements of " + project.size() + " project files and " +
+                databasePaths.size() + " database files");
+        for (int i = 0; i < project.size(); i++) {
+            addText(i, project.get(i));
+        }
+        numProjectFiles = project.size();
+        for (int i = 0; i < databasePaths.size(); i++) {
+            Text txt = Database.loadSingleFile(databasePaths.get(i), databaseDir, minNumLines, false);
+            addText(numProjectFiles + i, txt);
+            System.out.print((i+1) + "\r");
+        }
+        System.out.println("");
+
+        ArrayList<int[]> classList = findCloneClasses();
+
+        HashMap<Integer, ArrayList<Statement>> statementMap = new HashMap<Integer, ArrayList<Statement>>();
+        HashMap<Integer, String> fileNameMap = new HashMap<Integer, String>();
+        int[] fileNeeded = filesOf(classList);
+        for (int fileIdx : fileNeeded) {
+            Text txt;
+            if (fileIdx < numProjectFiles) {
+                txt = project.get(fileIdx);
+            } else {
+                txt = Database.loadSingleFile(databasePaths.get(fileIdx - numProjectFiles),
+                        databaseDir, minNumLines, false);
+            }
+            collectStatements(fileIdx, txt, statementMap, fileNameMap);
+        }
+
+        report(classList, statementMap, fileNameMap, output);
+    }
+
+    private void addText(int fileIdx, Text txt) {
+        for (int m = 0; m < txt.getNumMethods(); m++) {
+            ArrayList<Statement> statements = txt.getRawStatements(m);
+
+            if (numMethods == methodFile.length) {
+                methodFile = Arrays.copyOf(methodFile, numMethods * 2);
+                methodIndex = Arrays.copyOf(methodIndex, numMethods * 2);
+                methodOffset = Arrays.copyOf(methodOffset, numMethods * 2);
+            }
+            methodFile[numMethods] = fileIdx;
+            methodIndex[numMethods] = m;
+            methodOffset[numMethods] = textSize;
+            numMethods++;
+
+            // room for the statements and the separator
+            if (textSize + statements.size() + 1 > text.length) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2, textSize + statements.size() + 1));
+            }
+            for (Statement s : statements) {
+                text[textSize] = s.hashNumber;
+                textSize++;
+            }
+            // placeholder, replaced by a unique separator in remapText
+            text[textSize] = 0;
+            textSize++;
+        }
+    }
+
+    // map the hashes to dense ranks and give every method its own separator
+    private void remapText() {
+        int[] values = new int[textSize - numMethods];
+        int count = 0;
+        int method = 0;
+        for (int i = 0; i < textSize; i++) {
+            if (method + 1 <= numMethods && isSeparatorPosition(i, method)) {
+                method++;
+                continue;
+            }
+            values[count] = text[i];
+            count++;
+        }
+        Arrays.sort(values);
+
+        int distinct = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i-1]) {
+                values[distinct] = values[i];
+                distinct++;
+            }
+        }
+
+        separatorBase = distinct;
+        method = 0;
+        for (int i = 0; i < textSize; i++) {
+            if (method + 1 <= numMethods && isSeparatorPosition(i, method)) {
+                text[i] = separatorBase + method;
+                method++;
+            } else {
+                text[i] = Arrays.binarySearch(values, 0, distinct, text[i]);
+            }
+        }
+    }
+
+    // the separator of a method is right before the next method starts
+    private boolean isSeparatorPosition(int pos, int method) {
+        int nextStart = (method + 1 < numMethods) ? methodOffset[method + 1] : textSize;
+        return pos == nextStart - 1;
+    }
+
+    /*
+     * Returns the clone classes as {length, position, position, ...}
+     * with the positions sorted by their place in the text.
+     */
+    private ArrayList<int[]> findCloneClasses() {
+        ArrayList<int[]> classList = new ArrayList<int[]>();
+        if (numMethods == 0) {
+            return classList;
+        }
+
+        System.out.println("Building suffix array over " + textSize + " statements");
+        remapText();
+        int[] sa = buildSuffixArray(text, textSize, separatorBase + numMethods);
+        int[] lcp = buildLcpArray(text, textSize, sa);
+
+        // bottom-up traversal of the lcp intervals
+        int n = textSize;
+        int[] lcpStack = new int[64];
+        int[] lbStack = new int[64];
+        int[] leftStack = new int[64];
+        int top = 0;
+        lcpStack[0] = 0;
+        lbStack[0] = 0;
+        leftStack[0] = leftOf(sa, 0);
+
+        for (int i = 1; i <= n; i++) {
+            int cur = (i < n) ? lcp[i] : -1;
+            int lb = i - 1;
+            int poppedLeft = NONE;
+
+            while (top >= 0 && cur < lcpStack[top]) {
+                int intervalLcp = lcpStack[top];
+                int intervalLb = lbStack[top];
+                int intervalLeft = leftStack[top];
+                top--;
+
+                // left-diverse and right-maximal: a maximal repeat
+                if (intervalLcp >= minNumLines && intervalLeft == DIVERSE) {
+                    int[] cloneClass = occurrences(sa, intervalLb, i - 1, intervalLcp);
+                    if (cloneClass != null) {
+                        classList.add(cloneClass);
+                    }
+                }
+
+                lb = intervalLb;
+                if (top >= 0 && cur <= lcpStack[top]) {
+                    leftStack[top] = merge(leftStack[top], intervalLeft);
+                } else {
+                    poppedLeft = intervalLeft;
+                }
+            }
+
+            if (i == n) {
+                break;
+            }
+
+            if (cur > lcpStack[top]) {
+                if (top + 1 == lcpStack.length) {
+                    lcpStack = Arrays.copyOf(lcpStack, lcpStack.length * 2);
+                    lbStack = Arrays.copyOf(lbStack, lbStack.length * 2);
+                    leftStack = Arrays.copyOf(leftStack, leftStack.length * 2);
+                }
+                int left = (poppedLeft == NONE) ? leftOf(sa, i - 1) : poppedLeft;
+                top++;
+                lcpStack[top] = cur;
+                lbStack[top] = lb;
+                leftStack[top] = merge(left, leftOf(sa, i));
+            } else {
+                leftStack[top] = merge(leftStack[top], leftOf(sa, i));
+            }
+        }
+
+        System.out.println("Found " + classList.size() + " clone classes");
+        return classList;
+    }
+
+    // the statement before a suffix, separators and the text start are unique
+    private int leftOf(int[] sa, int i) {
+        int pos = sa[i];
+        if (pos == 0 || text[pos - 1] >= separatorBase) {
+            return DIVERSE;
+        }
+        return text[pos - 1];
+    }
+
+    private static int merge(int a, int b) {
+        if (a == NONE) {
+            return b;
+        }
+        if (b == NONE) {
+            return a;
+        }
+        if (a == b) {
+            return a;
+        }
+        return DIVERSE;
+    }
+
+    private int[] occurrences(int[] sa, int lb, int rb, int length) {
+        int[] cloneClass = new int[rb - lb + 2];
+        cloneClass[0] = length;
+        for (int i = lb; i <= rb; i++) {
+            cloneClass[i - lb + 1] = sa[i];
+        }
+        Arrays.sort(cloneClass, 1, cloneClass.length);
+
+        // full mesh only compares different files,
+        // between mode needs a project and a database side
+        int firstFile = methodFile[methodOf(cloneClass[1])];
+        int lastFile = methodFile[methodOf(cloneClass[cloneClass.length - 1])];
+        if (firstFile == lastFile) {
+            return null;
+        }
+        if (numProjectFiles > 0 &&
+                (firstFile >= numProjectFiles || lastFile < numProjectFiles)) {
+            return null;
+        }
+        return cloneClass;
+    }
+
+    private int methodOf(int pos) {
+        int lo = 0;
+        int hi = numMethods - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (methodOffset[mid] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private int[] filesOf(ArrayList<int[]> classList) {
+        boolean[] needed = new boolean[numMethods == 0 ? 0 : methodFile[numMethods - 1] + 1];
+        int count = 0;
+        for (int[] cloneClass : classList) {
+            for (int i = 1; i < cloneClass.length; i++) {
+                int fileIdx = methodFile[methodOf(cloneClass[i])];
+                if (!needed[fileIdx]) {
+                    needed[fileIdx] = true;
+                    count++;
+                }
+            }
+        }
+        int[] files = new int[count];
+        int index = 0;
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i]) {
+                files[index] = i;
+                index++;
+            }
+        }
+        return files;
+    }
+
+    private void collectStatements(int fileIdx, Text txt,
+            HashMap<Integer, ArrayList<Statement>> statementMap, HashMap<Integer, String> fileNameMap) {
+        fileNameMap.put(fileIdx, databaseDir + txt.getDatabasePath());
+        // methods of a file are consecutive
+        int first = methodOf(firstOffsetOfFile(fileIdx));
+        for (int m = first; m < numMethods && methodFile[m] == fileIdx; m++) {
+            statementMap.put(m, txt.getRawStatements(methodIndex[m]));
+        }
+    }
+
+    private int firstOffsetOfFile(int fileIdx) {
+        int lo = 0;
+        int hi = numMethods - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (methodFile[mid] < fileIdx) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return methodOffset[lo];
+    }
+
+    private void report(ArrayList<int[]> classList,
+            HashMap<Integer, ArrayList<Statement>> statementMap, HashMap<Integer, String> fileNameMap,
+            Output output) {
+
+        for (int[] cloneClass : classList) {
+            int length = cloneClass[0];
+
+            ArrayList<String> fileNames = new ArrayList<String>();
+            ArrayList<ArrayList<Statement>> statementLists = new ArrayList<ArrayList<Statement>>();
+            ArrayList<Integer> startIndexes = new ArrayList<Integer>();
+            int numMaster = 0;
+            for (int i = 1; i < cloneClass.length; i++) {
+                int method = methodOf(cloneClass[i]);
+                fileNames.add(fileNameMap.get(methodFile[method]));
+                statementLists.add(statementMap.get(method));
+                startIndexes.add(cloneClass[i] - methodOffset[method]);
+                if (methodFile[method] < numProjectFiles) {
+                    numMaster++;
+                }
+            }
+            if (numProjectFiles == 0) {
+                numMaster = 1;
+            }
+
+            output.addCloneClass(fileNames, statementLists, startIndexes, length, numMaster);
+        }
+    }
+
+    /*
+     * Prefix doubling with radix sort, O(n log n) where the number of
+     * rounds only depends on the longest repeat.
+     */
+    static int[] buildSuffixArray(int[] s, int n, int alphabetSize) {
+        int[] sa = new int[n];
+        int[] rank = new int[n];
+        int[] tmp = new int[n];
+        int[] count = new int[Math.max(alphabetSize, n) + 1];
+
+        // initial order by the first symbol
+        for (int i = 0; i < n; i++) {
+            count[s[i]]++;
+        }
+        for (int i = 1; i < alphabetSize; i++) {
+            count[i] = count[i] + count[i-1];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            count[s[i]]--;
+            sa[count[s[i]]] = i;
+        }
+        int classes = 0;
+        rank[sa[0]] = 0;
+        for (int i = 1; i < n; i++) {
+            if (s[sa[i]] != s[sa[i-1]]) {
+                classes++;
+            }
+            rank[sa[i]] = classes;
+        }
+        classes++;
+
+        for (int k = 1; classes < n; k = k << 1) {
+            // order by the second half: suffixes without one come first
+            int p = 0;
+            for (int i = n - k; i < n; i++) {
+                tmp[p] = i;
+                p++;
+            }
+            for (int i = 0; i < n; i++) {
+                if (sa[i] >= k) {
+                    tmp[p] = sa[i] - k;
+                    p++;
+                }
+            }
+
+            // stable sort by the first half
+            Arrays.fill(count, 0, classes + 1, 0);
+            for (int i = 0; i < n; i++) {
+                count[rank[i]]++;
+            }
+            for (int i = 1; i < classes; i++) {
+                count[i] = count[i] + count[i-1];
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                int pos = tmp[i];
+                count[rank[pos]]--;
+                sa[count[rank[pos]]] = pos;
+            }
+
+            // new ranks
+            tmp[sa[0]] = 0;
+            int newClasses = 0;
+            for (int i = 1; i < n; i++) {
+                int cur = sa[i];
+                int prev = sa[i-1];
+                int curSecond = (cur + k < n) ? rank[cur + k] : -1;
+                int prevSecond = (prev + k < n) ? rank[prev + k] : -1;
+                if (rank[cur] != rank[prev] || curSecond != prevSecond) {
+                    newClasses++;
+                }
+                tmp[cur] = newClasses;
+            }
+            int[] swap = rank;
+            rank = tmp;
+            tmp = swap;
+            classes = newClasses + 1;
+        }
+
+        return sa;
+    }
+
+    // Kasai's algorithm, lcp[i] is the common prefix of sa[i-1] and sa[i]
+    static int[] buildLcpArray(int[] s, int n, int[] sa) {
+        int[] rank = new int[n];
+        for (int i = 0; i < n; i++) {
+            rank[sa[i]] = i;
+        }
+        int[] lcp = new int[n];
+        int h = 0;
+        for (int i = 0; i < n; i++) {
+            if (rank[i] > 0) {
+                int j = sa[rank[i] - 1];
+                while (i + h < n && j + h < n && s[i + h] == s[j + h]) {
+                    h++;
+                }
+                lcp[rank[i]] = h;
+                if (h > 0) {
+                    h--;
+                }
+            } else {
+                h = 0;
+            }
+        }
+        return lcp;
+    }
+}
@@ -7,10 +7,22 @@ import org.apache.commons.io.FilenameUtils;
 
 import java.io.*;
 
+import java.nio.IntBuffer;
+
 public class Text implements Serializable {
 
     private String databasePath;  // freecol/xx/xx/xx
 	
+    // statements per winnowing fingerprint, 0 or more than
+    // minNumLines means one fingerprint run spans minNumLines
+    public static int fingerprintSize = 0;
+
+    // size of the MinHash signatures to store, 0 for none
+    public static int minHashSize = 0;
+
+    // tokenize with the LexerParser instead of the JDT Parser
+    public static boolean useLexer = false;
+
 	/* A collection of Methods */
 	ArrayList<Method> methodList = new ArrayList<Method>();
 	
@@ -33,6 +45,35 @@ public class Text implements Serializable {
         return methodList.get(i);
     }
 
+    // statement hashes of method i, stored texts give a view into the store
+    public IntBuffer getHashes(int i) {
+        return IntBuffer.wrap(methodList.get(i).getHashArray());
+    }
+
+    // null if the method has no fingerprints
+    public IntBuffer getFingerprints(int i) {
+        int[] fingerprints = methodList.get(i).fingerprints;
+        if (fingerprints == null) {
+            return null;
+        }
+        return IntBuffer.wrap(fingerprints);
+    }
+
+    public int getFingerprintSize(int i) {
+        return methodList.get(i).fingerprintSize;
+    }
+
+    public int getFingerprintWindow(int i) {
+        return methodList.get(i).fingerprintWindow;
+    }
+
+    // false if method k and method l of other cannot share an exact clone
+    public boolean mayShareRun(int k, Text other, int l, int minNumLines) {
+        return Method.mayShareRun(getFingerprints(k), getFingerprintSize(k), getFingerprintWindow(k),
+                other.getFingerprints(l), other.getFingerprintSize(l), other.getFingerprintWindow(l),
+                minNumLines);
+    }
+
     public String getDatabasePath() {
         return databasePath;
     }
@@ -62,7 +103,24 @@ public class Text implements Serializable {
         
         String absolutePath = basePath + databasePath;
 
-        Tokenizer token = Parser.parseAST2Tokens(absolutePath, minNumLines, debug);
+        Tokenizer token;
+        if (useLexer) {
+            token = LexerParser.parseLexer2Tokens(absolutePath, minNumLines, debug);
+        } else {
+            token = Parser.parseAST2Tokens(absolutePath, minNumLines, debug);
+        }
+        return tokenize(token, minNumLines, fileProcessError, basePath);
+    }
+
+    // the methods of a file the parser has already tokenized, null if it failed
+    public ArrayList<String> tokenize(
+            Tokenizer token,
+            int minNumLines, 
+            ArrayList<String> fileProcessError,
+            String basePath) {
+
+        String absolutePath = basePath + databasePath;
+
         if (token == null) {
             // error at parsing the token list, abort
             fileProcessError.add(absolutePath);
@@ -70,23 +128,29 @@ public class Text implements Serializable {
         }
 
         ArrayList<Method> methodListAll = token.getTokenizedMethods();
+
+        // fingerprints cover exactly minNumLines statements
+        int k = fingerprintSize;
+        if (k <= 0 || k > minNumLines) {
+            k = minNumLines;
+        }
+        for (Method thisMethod : methodListAll) {
+            thisMethod.buildFingerprints(k, minNumLines - k + 1);
+            if (minHashSize > 0) {
+                thisMethod.getMinHashes(minHashSize);
+            }
+        }
         
-        CommentParser cParser = new CommentParser(absolutePath);
+        CommentParser cParser = new CommentParser(token.getComments());
 
-        // check and see if there is a comment in each method
+        // keep the comments of every method, with the line comments that
+        // may lead into its first statements
         for (Method thisMethod : methodListAll) {
             int startLine = thisMethod.getStart();
             int endLine = thisMethod.getEnd();
 
-            //System.out.println(startLine + " " + endLine + " " + absolutePath);
-            
-            ArrayList<CommentMap> cMapList = cParser.parseComment(absolutePath, startLine, endLine, 1);
-
-            // TODO: fix this optimization later
-            //if (cMapList.size() == 0) {
-            //} else {
+            thisMethod.setComments(cParser.getComments(startLine - 3, endLine));
             methodList.add(thisMethod);
-            //}
         }
 
         return fileProcessError;
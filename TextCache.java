@@ -0,0 +1,90 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Least recently used cache of database texts for the mesh comparison,
+ * bounded by an estimate of the memory the cached texts take up. Texts
+ * are kept by their position in the database file list.
+ */
+public class TextCache {
+
+    // rough heap use of a statement with its strings, and of a text itself
+    private static final long BYTES_PER_STATEMENT = 256;
+    private static final long BYTES_PER_TEXT = 1024;
+
+    long capacity;
+    long usedBytes = 0;
+
+    int numHits = 0;
+    int numMisses = 0;
+
+    // in access order, the eldest entry is the least recently used
+    LinkedHashMap<Integer, Entry> entryMap = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+
+    static class Entry {
+        Text text;
+        long size;
+    }
+
+    // capacity in megabytes
+    public TextCache(int capacityMb) {
+        capacity = (long) capacityMb << 20;
+    }
+
+    public static long estimateSize(Text txt) {
+        long size = BYTES_PER_TEXT;
+        for (int m = 0; m < txt.getNumMethods(); m++) {
+            size = size + txt.getHashes(m).limit() * BYTES_PER_STATEMENT;
+        }
+        return size;
+    }
+
+    // null if the text is not cached
+    public Text get(int index) {
+        Entry entry = entryMap.get(index);
+        if (entry == null) {
+            numMisses++;
+            return null;
+        }
+        numHits++;
+        return entry.text;
+    }
+
+    // texts larger than the whole cache are not kept
+    public void put(int index, Text txt) {
+        Entry entry = new Entry();
+        entry.text = txt;
+        entry.size = estimateSize(txt);
+        if (entry.size > capacity) {
+            return;
+        }
+
+        Entry old = entryMap.put(index, entry);
+        if (old != null) {
+            usedBytes = usedBytes - old.size;
+        }
+        usedBytes = usedBytes + entry.size;
+
+        // evict the least recently used texts, the new one is the youngest
+        Iterator<Map.Entry<Integer, Entry>> it = entryMap.entrySet().iterator();
+        while (usedBytes > capacity && it.hasNext()) {
+            Map.Entry<Integer, Entry> eldest = it.next();
+            usedBytes = usedBytes - eldest.getValue().size;
+            it.remove();
+        }
+    }
+
+    // only kept if no other text has to make room for it
+    public void putIfRoom(int index, Text txt) {
+        long size = estimateSize(txt);
+        if (usedBytes + size <= capacity) {
+            put(index, txt);
+        }
+    }
+
+    public void printStats() {
+        System.out.println("Text cache: " + numHits + " hits, " + numMisses + " loads, " +
+                (usedBytes >> 20) + " of " + (capacity >> 20) + " MB in use");
+    }
+}
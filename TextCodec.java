@@ -0,0 +1,519 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Compact binary format of the .db files. Line numbers and counts are
+ * varints, statement hashes, fingerprints and MinHashes are raw ints.
+ * The file has a hot section with what the comparison needs, the lines,
+ * 32- and 64-bit hashes, scope levels and flags of the statements and the method
+ * fingerprints, followed by a cold section with the name lists and the
+ * comments of every method. Each method has its own string table in the
+ * cold section, so that the cold part of one method can be read on its
+ * own; a text read from a file only gets it when a name list or the
+ * comments are first asked for, provided the file still has the length
+ * and modification time it had when the hot section was read. With
+ * compression the hot section and the cold part of every method are
+ * compressed blocks of their own.
+ */
+public class TextCodec {
+
+    private static final int MAGIC = 0x434C4442;   // "CLDB"
+    private static final int VERSION = 6;
+
+    private static final int HAS_METHOD_INVOCATION = 1;
+    private static final int HAS_NAME_LIST = 2;
+
+    // file flags
+    private static final int COMPRESSED = 1;
+
+    // compress the files written from now on, both kinds can be read
+    public static boolean compress = false;
+
+    // the whole file is put together first, the name lists of txt may still be read from filePath
+    public static void write(Text txt, String filePath) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        write(txt, new DataOutputStream(bos));
+        FileOutputStream fos = new FileOutputStream(filePath);
+        try {
+            bos.writeTo(fos);
+        } finally {
+            fos.close();
+        }
+    }
+
+    // the hot section only, the name lists are read on first use
+    public static Text read(String filePath) throws IOException {
+        File f = new File(filePath);
+        long length = f.length();
+        long modified = f.lastModified();
+        Text txt;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+        try {
+            txt = read(dis, filePath, length, modified);
+        } finally {
+            dis.close();
+        }
+        if (f.length() != length || f.lastModified() != modified) {
+            throw new IOException(filePath + " changed while it was read");
+        }
+        return txt;
+    }
+
+    public static void write(Text txt, DataOutput out) throws IOException {
+        ByteArrayOutputStream hotBytes = new ByteArrayOutputStream();
+        DataOutputStream hot = new DataOutputStream(hotBytes);
+        ByteArrayOutputStream coldBytes = new ByteArrayOutputStream();
+        DataOutputStream cold = new DataOutputStream(coldBytes);
+        boolean compressed = compress;
+        writeVarInt(hot, txt.methodList.size());
+        for (Method method : txt.methodList) {
+            writeVarInt(hot, cold.size());
+            writeMethod(method, hot);
+            if (compressed) {
+                ByteArrayOutputStream coldMethodBytes = new ByteArrayOutputStream();
+                writeCold(method, new DataOutputStream(coldMethodBytes));
+                Compression.writeBlock(cold, coldMethodBytes.toByteArray());
+            } else {
+                writeCold(method, cold);
+            }
+        }
+        hot.flush();
+        cold.flush();
+        if (compressed) {
+            byte[] raw = hotBytes.toByteArray();
+            hotBytes = new ByteArrayOutputStream();
+            hot = new DataOutputStream(hotBytes);
+            Compression.writeBlock(hot, raw);
+            hot.flush();
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeUTF(txt.getDatabasePath());
+        header.writeByte(compressed ? COMPRESSED : 0);
+        header.flush();
+
+        out.write(headerBytes.toByteArray());
+        // where the cold section starts
+        out.writeInt(headerBytes.size() + 4 + hotBytes.size());
+        out.write(hotBytes.toByteArray());
+        out.write(coldBytes.toByteArray());
+    }
+
+    // all of it, the cold section is read right after the hot one
+    public static Text read(DataInput in) throws IOException {
+        return read(in, null, 0, 0);
+    }
+
+    private static Text read(DataInput in, String filePath,
+            long fileLength, long fileModified) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a database file of version " + VERSION);
+        }
+        Text txt = new Text(in.readUTF(), "");
+        boolean compressed = (in.readByte() & COMPRESSED) != 0;
+        int coldStart = in.readInt();
+
+        DataInput hot = in;
+        if (compressed) {
+            hot = Compression.openBlock(in);
+        }
+        int numMethods = readVarInt(hot);
+        for (int m = 0; m < numMethods; m++) {
+            int coldOffset = readVarInt(hot);
+            Method method = readMethod(hot);
+            if (filePath != null) {
+                ColdBlock block = new ColdBlock(filePath, fileLength, fileModified,
+                        coldStart + coldOffset, compressed, method);
+                method.coldBlock = block;
+                for (Statement s : method.getMethodStatements()) {
+                    s.coldBlock = block;
+                }
+            }
+            txt.methodList.add(method);
+        }
+
+        if (filePath == null) {
+            for (Method method : txt.methodList) {
+                readCold(method, in, compressed);
+            }
+        }
+        return txt;
+    }
+
+    /*
+     * The name lists and comments of one method in a .db file, read on
+     * first use. The offset is only good for the file as it was when the
+     * hot section was read, a file rewritten since then is an error.
+     */
+    public static class ColdBlock {
+
+        String filePath;
+        long fileLength;
+        long fileModified;
+        long offset;
+        boolean compressed;
+        Method method;
+
+        ColdBlock(String filePathIn, long fileLengthIn, long fileModifiedIn,
+                long offsetIn, boolean compressedIn, Method methodIn) {
+            filePath = filePathIn;
+            fileLength = fileLengthIn;
+            fileModified = fileModifiedIn;
+            offset = offsetIn;
+            compressed = compressedIn;
+            method = methodIn;
+        }
+
+        synchronized void load() {
+            if (method == null) {
+                // loaded by another thread
+                return;
+            }
+            FileInputStream fis = null;
+            try {
+                File f = new File(filePath);
+                if (f.length() != fileLength || f.lastModified() != fileModified) {
+                    throw new IOException(filePath + " changed since it was read");
+                }
+                fis = new FileInputStream(filePath);
+                fis.getChannel().position(offset);
+                readCold(method, new DataInputStream(new BufferedInputStream(fis)), compressed);
+            } catch (IOException e) {
+                System.out.println("Error while loading name lists from " + filePath + "\n" + e);
+                System.exit(0);
+            } finally {
+                try {
+                    if (fis != null) {
+                        fis.close();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error while closing stream\n" + e);
+                }
+            }
+            for (Statement s : method.getMethodStatements()) {
+                s.coldBlock = null;
+            }
+            method.coldBlock = null;
+            method = null;
+        }
+    }
+
+    private static void writeMethod(Method method, DataOutput out) throws IOException {
+        writeVarInt(out, method.methodStartLine);
+        writeSignedVarInt(out, method.methodEndLine - method.methodStartLine);
+
+        writeStatements(method.getMethodStatements(), method.methodStartLine, null, out);
+
+        // fingerprints and MinHashes, counted one up so that 0 is null
+        if (method.fingerprints == null) {
+            writeVarInt(out, 0);
+        } else {
+            writeVarInt(out, method.fingerprints.length + 1);
+            writeVarInt(out, method.fingerprintSize);
+            writeVarInt(out, method.fingerprintWindow);
+            for (int fingerprint : method.fingerprints) {
+                out.writeInt(fingerprint);
+            }
+        }
+        if (method.minHashes == null) {
+            writeVarInt(out, 0);
+        } else {
+            writeVarInt(out, method.minHashes.length + 1);
+            for (int minHash : method.minHashes) {
+                out.writeInt(minHash);
+            }
+        }
+    }
+
+    private static Method readMethod(DataInput in) throws IOException {
+        Method method = new Method(readVarInt(in));
+        method.setEndLine(method.methodStartLine + readSignedVarInt(in));
+
+        readStatements(method.getMethodStatements(), method.methodStartLine, null, in);
+
+        int numFingerprints = readVarInt(in);
+        if (numFingerprints > 0) {
+            method.fingerprintSize = readVarInt(in);
+            method.fingerprintWindow = readVarInt(in);
+            method.fingerprints = new int[numFingerprints - 1];
+            for (int i = 0; i < method.fingerprints.length; i++) {
+                method.fingerprints[i] = in.readInt();
+            }
+        }
+        int numMinHashes = readVarInt(in);
+        if (numMinHashes > 0) {
+            method.minHashes = new int[numMinHashes - 1];
+            for (int i = 0; i < method.minHashes.length; i++) {
+                method.minHashes[i] = in.readInt();
+            }
+        }
+        return method;
+    }
+
+    // add the names of the statements that are not in the string table yet
+    public static void collectNames(List<Statement> statementList,
+            HashMap<String, Integer> stringIndex, ArrayList<String> stringTable) {
+        for (Statement s : statementList) {
+            HashSet<String> nameList = s.getNameList();
+            if (nameList == null) {
+                continue;
+            }
+            for (String name : nameList) {
+                if (!stringIndex.containsKey(name)) {
+                    stringIndex.put(name, stringTable.size());
+                    stringTable.add(name);
+                }
+            }
+        }
+    }
+
+    public static void writeStringTable(List<String> stringTable, DataOutput out) throws IOException {
+        writeVarInt(out, stringTable.size());
+        for (String name : stringTable) {
+            out.writeUTF(name);
+        }
+    }
+
+    public static String[] readStringTable(DataInput in) throws IOException {
+        String[] stringTable = new String[readVarInt(in)];
+        for (int i = 0; i < stringTable.length; i++) {
+            stringTable[i] = in.readUTF();
+        }
+        return stringTable;
+    }
+
+    /*
+     * Statements with their names as string table numbers, lines relative
+     * to firstLine. Without a string table the names are left out.
+     */
+    public static void writeStatements(List<Statement> statementList, int firstLine,
+            HashMap<String, Integer> stringIndex, DataOutput out) throws IOException {
+        writeVarInt(out, statementList.size());
+        int lastLine = firstLine;
+        for (Statement s : statementList) {
+            out.writeInt(s.hashNumber);
+            out.writeLong(s.longHash);
+            // lines relative to the previous statement, mostly one byte
+            writeSignedVarInt(out, s.startLine - lastLine);
+            writeSignedVarInt(out, s.endLine - s.startLine);
+            writeVarInt(out, s.scopeLevel);
+            lastLine = s.startLine;
+
+            HashSet<String> nameList = null;
+            if (stringIndex != null) {
+                nameList = s.getNameList();
+            }
+            int flags = 0;
+            if (s.hasMethodInvocation) {
+                flags = flags | HAS_METHOD_INVOCATION;
+            }
+            if (nameList != null) {
+                flags = flags | HAS_NAME_LIST;
+            }
+            out.writeByte(flags);
+            if (nameList != null) {
+                writeVarInt(out, nameList.size());
+                for (String name : nameList) {
+                    writeVarInt(out, stringIndex.get(name));
+                }
+            }
+        }
+    }
+
+    public static void readStatements(ArrayList<Statement> statementList, int firstLine,
+            String[] stringTable, DataInput in) throws IOException {
+        int numStatements = readVarInt(in);
+        statementList.ensureCapacity(numStatements);
+        int lastLine = firstLine;
+        for (int i = 0; i < numStatements; i++) {
+            int hash = in.readInt();
+            long longHash = in.readLong();
+            int startLine = lastLine + readSignedVarInt(in);
+            int endLine = startLine + readSignedVarInt(in);
+            Statement s = new Statement(hash, startLine, endLine);
+            s.longHash = longHash;
+            s.insertScope(readVarInt(in));
+            lastLine = startLine;
+
+            int flags = in.readByte();
+            if ((flags & HAS_METHOD_INVOCATION) != 0) {
+                s.enableMethodInvocation();
+            }
+            if ((flags & HAS_NAME_LIST) != 0) {
+                int numNames = readVarInt(in);
+                HashSet<String> nameList = new HashSet<String>();
+                for (int j = 0; j < numNames; j++) {
+                    nameList.add(stringTable[readVarInt(in)]);
+                }
+                s.insertNameList(nameList);
+            }
+            statementList.add(s);
+        }
+    }
+
+    // the cold part of a method: its names, then its comments
+    private static void writeCold(Method method, DataOutput out) throws IOException {
+        writeNames(method.getMethodStatements(), out);
+        writeComments(method.getComments(), out);
+    }
+
+    private static void readCold(Method method, DataInput in, boolean compressed) throws IOException {
+        if (compressed) {
+            in = Compression.openBlock(in);
+        }
+        readNames(method.getMethodStatements(), in);
+        method.setComments(readComments(in));
+    }
+
+    // its own string table and the name list of every statement
+    private static void writeNames(List<Statement> statementList, DataOutput out) throws IOException {
+        HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+        ArrayList<String> stringTable = new ArrayList<String>();
+        collectNames(statementList, stringIndex, stringTable);
+        writeVarInt(out, statementList.size());
+        writeStringTable(stringTable, out);
+        for (Statement s : statementList) {
+            HashSet<String> nameList = s.getNameList();
+            if (nameList == null) {
+                writeVarInt(out, 0);
+            } else {
+                // counted one up so that 0 is null
+                writeVarInt(out, nameList.size() + 1);
+                for (String name : nameList) {
+                    writeVarInt(out, stringIndex.get(name));
+                }
+            }
+        }
+    }
+
+    private static void readNames(List<Statement> statementList, DataInput in) throws IOException {
+        if (readVarInt(in) != statementList.size()) {
+            throw new IOException("name lists do not match the statements");
+        }
+        String[] stringTable = readStringTable(in);
+        for (Statement s : statementList) {
+            int numNames = readVarInt(in);
+            HashSet<String> nameList = null;
+            if (numNames > 0) {
+                nameList = new HashSet<String>();
+                for (int j = 0; j < numNames - 1; j++) {
+                    nameList.add(stringTable[readVarInt(in)]);
+                }
+            }
+            s.insertNameList(nameList);
+        }
+    }
+
+    // comments are written on their own, they are not part of a text
+    public static void writeComment(CommentMap cMap, DataOutput out) throws IOException {
+        writeString(out, cMap.comment);
+        writeVarInt(out, cMap.startLine);
+        writeSignedVarInt(out, cMap.endLine - cMap.startLine);
+        writeVarInt(out, cMap.commentType);
+        out.writeBoolean(cMap.standalone);
+        if (cMap.artifactSet == null) {
+            writeVarInt(out, 0);
+        } else {
+            writeVarInt(out, cMap.artifactSet.size() + 1);
+            for (String artifact : cMap.artifactSet) {
+                writeString(out, artifact);
+            }
+        }
+    }
+
+    public static CommentMap readComment(DataInput in) throws IOException {
+        String comment = readString(in);
+        int startLine = readVarInt(in);
+        int endLine = startLine + readSignedVarInt(in);
+        CommentMap cMap = new CommentMap(comment, startLine, endLine, readVarInt(in));
+        cMap.standalone = in.readBoolean();
+        int numArtifacts = readVarInt(in);
+        if (numArtifacts > 0) {
+            Set<String> artifactSet = new HashSet<String>();
+            for (int i = 0; i < numArtifacts - 1; i++) {
+                artifactSet.add(readString(in));
+            }
+            cMap.artifactSet = artifactSet;
+        }
+        return cMap;
+    }
+
+    public static void writeComments(List<CommentMap> commentList, DataOutput out) throws IOException {
+        writeVarInt(out, commentList.size());
+        for (CommentMap cMap : commentList) {
+            writeComment(cMap, out);
+        }
+    }
+
+    public static ArrayList<CommentMap> readComments(DataInput in) throws IOException {
+        int numComments = readVarInt(in);
+        ArrayList<CommentMap> commentList = new ArrayList<CommentMap>(numComments);
+        for (int i = 0; i < numComments; i++) {
+            commentList.add(readComment(in));
+        }
+        return commentList;
+    }
+
+    // UTF-8 after its length in bytes, unlike writeUTF not limited to 65535 bytes
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 7 bits per byte, the high bit is set on all but the last byte
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value = value >>> 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift = shift + 7) {
+            int b = in.readByte();
+            value = value | (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    // zigzag encoding keeps small negative values short
+    public static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readSignedVarInt(DataInput in) throws IOException {
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
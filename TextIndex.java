@@ -0,0 +1,5 @@
+/* An index over the database that is filled while the cache is built */
+public interface TextIndex {
+
+    public void addText(int fileIndex, Text txt);
+}
@@ -2,15 +2,23 @@ import org.eclipse.jdt.core.dom.*;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.HashMap;
 
 public class Tokenizer {
 	
     public boolean inMethod = false;
 
-    List<Integer> currentTokenList = new ArrayList<Integer>();
+    // tokens since the last statement, folded into the hash as they come
+    int runningHash = 1;
+    long runningLongHash = 1;
+    int numTokens = 0;
+
+    // the tokens themselves are only kept for the debug output
+    int[] tokenBuffer;
 
     String currentMethodName = "";
     Method currentMethodObj;
@@ -27,15 +35,51 @@ public class Tokenizer {
 
     ArrayList<Method> methodList = new ArrayList<Method>();
     
+    // names of the current statement, reused from statement to statement
     HashSet<String> simpleNameList = new HashSet<String>();
 
+    // statements that take the names collected until the next statementStart
+    ArrayList<Statement> pendingStatements = new ArrayList<Statement>();
+
+    // one string per distinct name of the file
+    HashMap<String, String> namePool = new HashMap<String, String>();
+
+    // every comment of the file, in source order
+    ArrayList<CommentMap> commentList = new ArrayList<CommentMap>();
+
     public Tokenizer(int numLines, boolean debug) {
         minNumLines = numLines;
         debugStatements = debug;
+        if (debugStatements == true) {
+            tokenBuffer = new int[64];
+        }
     }
 
     public void insertSimpleName(String name) {
-        simpleNameList.add(name);
+        String pooled = namePool.get(name);
+        if (pooled == null) {
+            namePool.put(name, name);
+            pooled = name;
+        }
+        simpleNameList.add(pooled);
+    }
+
+    // hand the collected names to the statements added since the last statementStart
+    private void finishNames() {
+        if (!pendingStatements.isEmpty()) {
+            HashSet<String> nameList = new HashSet<String>(simpleNameList);
+            for (Statement statement : pendingStatements) {
+                statement.insertNameList(nameList);
+            }
+            pendingStatements.clear();
+        }
+        simpleNameList.clear();
+    }
+
+    private void clearTokens() {
+        runningHash = 1;
+        runningLongHash = 1;
+        numTokens = 0;
     }
 
     public void methodStart(String name, int mStartLine) {
@@ -62,7 +106,7 @@ public class Tokenizer {
                 methodList.add(currentMethodObj);
             } else {
                 // clear the statments
-                currentTokenList.clear();
+                clearTokens();
             }
         }
     }
@@ -71,17 +115,24 @@ public class Tokenizer {
         startLine = sLine;
         endLine = eLine;
         statementHasMethodInvocation = false;
-        simpleNameList = new HashSet<String>();
+        finishNames();
     }
 
     public void statementEnd(int scopeLevel) {
-        if (!currentTokenList.isEmpty()) {
-            int hash_value = hashLine(currentTokenList);
-            currentTokenList.clear();
+        if (numTokens > 0) {
+            int hash_value = runningHash;
+            long long_hash_value = runningLongHash;
+            if (debugStatements == true) {
+                hash_value = hashLine(tokenBuffer, numTokens);
+            }
+            clearTokens();
 
             if (inMethod == true) {
-                currentMethodObj.addStatement(hash_value, startLine, endLine,
-                        statementHasMethodInvocation, scopeLevel, simpleNameList);
+                // the names are filled in at the next statementStart
+                currentMethodObj.addStatement(hash_value, long_hash_value, startLine, endLine,
+                        statementHasMethodInvocation, scopeLevel, null);
+                ArrayList<Statement> statements = currentMethodObj.getMethodStatements();
+                pendingStatements.add(statements.get(statements.size() - 1));
 
                 // debug
                 if (debugStatements == true) {
@@ -101,16 +152,42 @@ public class Tokenizer {
         int result = 1;
         result = prime * result + ((str == null) ? 0 : str.hashCode());
         result = prime * result + nodeType;
-        currentTokenList.add(result);
+
+        runningHash = prime * runningHash + result;
+        runningLongHash = LONG_PRIME * runningLongHash + longTokenHash(nodeType, str);
+        if (debugStatements == true) {
+            if (numTokens == tokenBuffer.length) {
+                tokenBuffer = Arrays.copyOf(tokenBuffer, numTokens * 2);
+            }
+            tokenBuffer[numTokens] = result;
+        }
+        numTokens++;
     }
     
-    public int hashLine(List<Integer> statementTokens) {
+    // FNV-1a over the characters, mixed with the node type
+    private static final long LONG_PRIME = 1099511628211L;
+
+    static long longTokenHash(int nodeType, String str) {
+        long h = 0xcbf29ce484222325L;
+        if (str != null) {
+            for (int i = 0; i < str.length(); i++) {
+                h = (h ^ str.charAt(i)) * LONG_PRIME;
+            }
+        }
+        h = (h ^ nodeType) * LONG_PRIME;
+        // spread the bits, the tokens are folded by multiplication only
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    public int hashLine(int[] statementTokens, int length) {
     	
 		    final int prime = 31;
 		    int result = 1;   	
     	
-		    for (Integer tkn : statementTokens) {
-    		    result = prime * result + tkn;
+		    for (int i = 0; i < length; i++) {
+    		    result = prime * result + statementTokens[i];
     	  }
 		
         if (debugStatements == true) {
@@ -153,7 +230,16 @@ public class Tokenizer {
     	
     }
 
+    public void setComments(ArrayList<CommentMap> comments) {
+        commentList = comments;
+    }
+
+    public ArrayList<CommentMap> getComments() {
+        return commentList;
+    }
+
     public ArrayList<Method> getTokenizedMethods() {
+        finishNames();
         return methodList;   
     }
 }